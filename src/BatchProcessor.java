@@ -0,0 +1,339 @@
+import blurDetectors.BlurDetectorType;
+import cache.ResultCache;
+import metrics.Counter;
+import metrics.MetricsRegistry;
+import metrics.MetricsReport;
+import metrics.PipelineMetrics;
+import metrics.Stage;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import utilities.AlignmentMode;
+import utilities.MatScope;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Extracts the receipts of many videos in one process. Videos are processed
+ * on a fixed number of workers, one video per worker, and only a bounded number
+ * of videos are in flight at once, which keeps the native memory capped.
+ *
+ * The receipt of every video is written to the output directory, and a line
+ * with the status and timings of the job is appended to {@value #SUMMARY_FILE}
+ * as soon as the job finishes.
+ */
+public class BatchProcessor {
+
+    private static final Logger logger = LogManager.getLogger(BatchProcessor.class);
+
+    public static final String SUMMARY_FILE = "summary.csv";
+    private static final String OUTPUT_EXTENSION = ".png";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final int workers;
+    private final int maxInFlight;
+    private final MetricsRegistry metricsRegistry;
+    private final ResultCache resultCache;
+
+    /**
+     * Neither the extractor nor its merger are thread-safe, hence one per worker.
+     */
+    private final ThreadLocal<ReceiptExtractor> receiptExtractor;
+
+    /**
+     * @param workers number of videos processed at once
+     * @param maxInFlight maximum number of videos submitted to the workers but not yet finished, at least workers
+     * @param blurDetectorType detector used to score frames and sections
+     * @param alignmentMode how the receipts of a video are aligned
+     * @param metricsRegistry registry which the report of every job is added to
+     * @param resultCache cache of extracted receipts, or null to not cache them
+     */
+    public BatchProcessor(int workers, int maxInFlight, BlurDetectorType blurDetectorType,
+                          AlignmentMode alignmentMode, MetricsRegistry metricsRegistry, ResultCache resultCache) {
+        if (workers < 1 || maxInFlight < workers) {
+            throw new IllegalArgumentException(
+                    String.format("Invalid pool size [workers=%d, maxInFlight=%d]", workers, maxInFlight)
+            );
+        }
+        this.workers = workers;
+        this.maxInFlight = maxInFlight;
+        this.metricsRegistry = metricsRegistry;
+        this.resultCache = resultCache;
+        // The frames of a video are processed on the worker itself; the videos are the unit of parallelism
+        this.receiptExtractor = ThreadLocal.withInitial(() -> new ReceiptExtractor(
+                Runnable::run, ReceiptExtractor.FrameSelection.SAMPLED, blurDetectorType, alignmentMode
+        ));
+    }
+
+    /**
+     * Lists the videos of a batch. If the source is a directory, all regular files in it are
+     * listed in name order. Otherwise the source is a manifest with the path of one video per line;
+     * blank lines and lines starting with '#' are ignored, and relative paths are resolved against
+     * the directory of the manifest.
+     *
+     * @param source directory or manifest
+     * @return the videos, read lazily from the source. Has to be closed.
+     * @throws IOException if the source couldn't be read
+     */
+    public static Stream<Path> listVideos(Path source) throws IOException {
+        if (Files.isDirectory(source)) {
+            return Files.list(source)
+                    .filter(Files::isRegularFile)
+                    .sorted();
+        }
+
+        Path directory = source.toAbsolutePath().getParent();
+        return Files.lines(source, StandardCharsets.UTF_8)
+                .map(String::trim)
+                .filter(line -> !line.isEmpty() && !line.startsWith("#"))
+                .map(directory::resolve);
+    }
+
+    /**
+     * Extracts the receipt of every video, blocking until all are done. Videos whose output
+     * already exists are skipped, so an interrupted batch can be resumed.
+     *
+     * The output of a video is named after the video without its extension. A video whose
+     * output name was already taken by an earlier video of the batch, e.g. a/x.mp4 and b/x.mp4,
+     * or x.mp4 and x.mov, fails instead of overwriting or skipping.
+     *
+     * @param videos videos to process
+     * @param outputDirectory directory to write the receipts and the summary to
+     * @return the result of every job, in the order they finished
+     * @throws IOException if the output directory or summary couldn't be written
+     */
+    public List<JobResult> process(Stream<Path> videos, Path outputDirectory) throws IOException {
+        Files.createDirectories(outputDirectory);
+
+        List<JobResult> results = Collections.synchronizedList(new ArrayList<>());
+        // Only used by the producer
+        Map<String, Path> outputNames = new HashMap<>();
+        Semaphore inFlight = new Semaphore(maxInFlight);
+        ExecutorService executor = Executors.newFixedThreadPool(workers);
+        try (BufferedWriter summary = Files.newBufferedWriter(outputDirectory.resolve(SUMMARY_FILE),
+                StandardCharsets.UTF_8)) {
+            writeSummaryLine(summary, createSummaryHeader());
+
+            try {
+                videos.forEach(video -> {
+                    Path previous = outputNames.putIfAbsent(getOutputName(video), video);
+                    if (previous != null) {
+                        String error = String.format("Output %s is already used by %s",
+                                getOutputName(video), previous);
+                        logger.warn("Not processing {}: {}", video, error);
+                        JobResult result = new JobResult(video, JobStatus.FAILED, null, null, error);
+                        results.add(result);
+                        writeSummaryLine(summary, result.toSummaryLine());
+                        return;
+                    }
+
+                    // Block the producer while too many videos are in flight
+                    inFlight.acquireUninterruptibly();
+                    executor.execute(() -> {
+                        try {
+                            JobResult result = process(video, outputDirectory);
+                            results.add(result);
+                            writeSummaryLine(summary, result.toSummaryLine());
+                        } finally {
+                            inFlight.release();
+                        }
+                    });
+                });
+            } finally {
+                // Wait for the remaining jobs before the summary is closed
+                inFlight.acquireUninterruptibly(maxInFlight);
+                executor.shutdown();
+            }
+        }
+
+        logger.info("Processed {} videos, {} failed", results.size(),
+                results.stream().filter(result -> result.getStatus() == JobStatus.FAILED).count());
+        return results;
+    }
+
+    /**
+     * Extracts the receipt of one video. Failures are reported in the result, never thrown.
+     *
+     * @param video video to process
+     * @param outputDirectory directory to write the receipt to
+     * @return result of the job
+     */
+    JobResult process(Path video, Path outputDirectory) {
+        Path output = outputDirectory.resolve(getOutputName(video));
+        if (Files.exists(output)) {
+            logger.info("Skipping {}, {} already exists", video, output);
+            return new JobResult(video, JobStatus.SKIPPED, output, null, null);
+        }
+
+        PipelineMetrics metrics = new PipelineMetrics();
+        try {
+            byte[] receipt = metrics.call(() -> extractEncodedSuperReceipt(video));
+            write(output, receipt);
+
+            MetricsReport report = metrics.report();
+            metricsRegistry.report(report);
+            logger.info("Extracted receipt from {}: {}", video, report);
+            return new JobResult(video, JobStatus.DONE, output, report, null);
+        } catch (RuntimeException | IOException e) {
+            logger.warn("Failed to extract receipt from {}", video, e);
+            MetricsReport report = metrics.report();
+            metricsRegistry.report(report);
+            return new JobResult(video, JobStatus.FAILED, null, report, e.toString());
+        } finally {
+            // The next video may have another size, and the worker may stay idle
+            MatScope.drainPool();
+        }
+    }
+
+    private byte[] extractEncodedSuperReceipt(Path video) {
+        try {
+            return receiptExtractor.get().extractEncodedSuperReceipt(video, false, OUTPUT_EXTENSION, resultCache);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Writes the receipt aside and moves it in place, so an interrupted batch never
+     * leaves a truncated output behind, which would be skipped when resuming.
+     */
+    private static void write(Path output, byte[] receipt) throws IOException {
+        Path temp = output.resolveSibling(output.getFileName() + TEMP_SUFFIX);
+        try {
+            Files.write(temp, receipt);
+            Files.move(temp, output, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private static String getOutputName(Path video) {
+        String name = video.getFileName().toString();
+        int extension = name.lastIndexOf('.');
+        return (extension > 0 ? name.substring(0, extension) : name) + OUTPUT_EXTENSION;
+    }
+
+    private static void writeSummaryLine(BufferedWriter summary, String line) {
+        synchronized (summary) {
+            try {
+                summary.write(line);
+                summary.newLine();
+                summary.flush();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private static String createSummaryHeader() {
+        List<String> columns = new ArrayList<>();
+        columns.add("video");
+        columns.add("status");
+        columns.add("elapsed_ms");
+        for (Stage stage : Stage.values()) {
+            columns.add(stage.getMetricName() + "_ms");
+        }
+        columns.add(Counter.FAILED_EXTRACTIONS.getMetricName());
+        columns.add("output");
+        columns.add("error");
+        return String.join(",", columns);
+    }
+
+    /**
+     * Outcome of a job.
+     */
+    public enum JobStatus {
+        DONE,
+
+        /**
+         * The output already existed.
+         */
+        SKIPPED,
+        FAILED
+    }
+
+    /**
+     * Result of extracting the receipt of one video.
+     */
+    public static class JobResult {
+        private final Path video;
+        private final JobStatus status;
+        private final Path output;
+        private final MetricsReport report;
+        private final String error;
+
+        JobResult(Path video, JobStatus status, Path output, MetricsReport report, String error) {
+            this.video = video;
+            this.status = status;
+            this.output = output;
+            this.report = report;
+            this.error = error;
+        }
+
+        public Path getVideo() {
+            return video;
+        }
+
+        public JobStatus getStatus() {
+            return status;
+        }
+
+        /**
+         * @return the written receipt, or null if the job failed
+         */
+        public Path getOutput() {
+            return output;
+        }
+
+        /**
+         * @return metrics of the job, or null if it was skipped or never started
+         */
+        public MetricsReport getReport() {
+            return report;
+        }
+
+        /**
+         * @return description of the failure, or null if the job didn't fail
+         */
+        public String getError() {
+            return error;
+        }
+
+        String toSummaryLine() {
+            List<String> values = new ArrayList<>();
+            values.add(escape(video.toString()));
+            values.add(status.name());
+            values.add(report == null ? "" : Long.toString(TimeUnit.NANOSECONDS.toMillis(report.getElapsedNanos())));
+            for (Stage stage : Stage.values()) {
+                values.add(report == null ? "" : Long.toString(TimeUnit.NANOSECONDS.toMillis(report.getNanos(stage))));
+            }
+            values.add(report == null ? "" : Long.toString(report.getCount(Counter.FAILED_EXTRACTIONS)));
+            values.add(output == null ? "" : escape(output.toString()));
+            values.add(error == null ? "" : escape(error));
+            return values.stream().collect(Collectors.joining(","));
+        }
+
+        private static String escape(String value) {
+            if (value.contains(",") || value.contains("\"") || value.contains("\n")) {
+                return '"' + value.replace("\"", "\"\"") + '"';
+            }
+            return value;
+        }
+    }
+}
@@ -0,0 +1,454 @@
+import blurDetectors.BlurDetectorType;
+import cache.ResultCache;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import metrics.Counter;
+import metrics.MetricsRegistry;
+import metrics.MetricsReport;
+import metrics.PipelineMetrics;
+import metrics.Stage;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import utilities.AlignmentMode;
+import utilities.MatScope;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Long-running local HTTP service which extracts receipts from videos. Keeping
+ * the JVM running saves the start-up, native library loading and JIT warm-up
+ * of every extraction.
+ *
+ * <ul>
+ *     <li>POST /jobs with a video as body, or a JSON body {"path": "...", "detectGlare": false}
+ *     referring to a local video, queues a job. Responds 202 with the job, 429 if the queue is full,
+ *     or 413 if an uploaded video exceeds {@value #MAX_UPLOAD_BYTES} bytes.</li>
+ *     <li>GET /jobs/{id} responds with the status of the job.</li>
+ *     <li>GET /jobs/{id}/result responds with the extracted receipt as PNG once the job is done.</li>
+ * </ul>
+ */
+public class ExtractionService implements AutoCloseable {
+
+    private static final Logger logger = LogManager.getLogger(ExtractionService.class);
+
+    private static final String JOBS_PATH = "/jobs";
+    private static final String RESULT_SUFFIX = "/result";
+    private static final String JSON_CONTENT_TYPE = "application/json";
+    private static final String IMAGE_CONTENT_TYPE = "image/png";
+    private static final String RESULT_EXTENSION = ".png";
+
+    /**
+     * Seconds clients are asked to wait before retrying a rejected job.
+     */
+    private static final int RETRY_AFTER_SECONDS = 5;
+
+    /**
+     * Number of finished jobs whose status and result are kept. The oldest are forgotten first.
+     */
+    private static final int MAX_FINISHED_JOBS = 100;
+
+    /**
+     * Requests only queue jobs or read their state, so a few threads suffice.
+     */
+    private static final int REQUEST_THREADS = 4;
+
+    /**
+     * Size limit of an uploaded video, which is buffered on disk until the job is done.
+     */
+    static final long MAX_UPLOAD_BYTES = 512L << 20;
+
+    private final HttpServer server;
+    private final ExecutorService requestExecutor = Executors.newFixedThreadPool(REQUEST_THREADS);
+    private final ThreadPoolExecutor executor;
+    private final MetricsRegistry metricsRegistry;
+    private final ResultCache resultCache;
+    private final Map<String, Job> jobs = new ConcurrentHashMap<>();
+    private final Queue<String> finishedJobs = new ConcurrentLinkedQueue<>();
+    private final long maxUploadBytes;
+
+    /**
+     * Neither the extractor nor its merger are thread-safe, hence one per worker.
+     */
+    private final ThreadLocal<ReceiptExtractor> receiptExtractor;
+
+    /**
+     * Creates the service, and starts serving requests.
+     *
+     * @param address address to listen on
+     * @param workers number of jobs processed at once
+     * @param queueCapacity number of jobs which may wait for a worker before new jobs are rejected
+     * @param blurDetectorType detector used to score frames and sections
+     * @param alignmentMode how the receipts of a video are aligned
+     * @param metricsRegistry registry which the report of every job is added to
+     * @param resultCache cache of extracted receipts, or null to not cache them
+     * @throws IOException if the address couldn't be bound
+     */
+    public ExtractionService(InetSocketAddress address, int workers, int queueCapacity,
+                             BlurDetectorType blurDetectorType, AlignmentMode alignmentMode,
+                             MetricsRegistry metricsRegistry, ResultCache resultCache) throws IOException {
+        this(address, workers, queueCapacity, blurDetectorType, alignmentMode, metricsRegistry, resultCache,
+                MAX_UPLOAD_BYTES);
+    }
+
+    /**
+     * @param maxUploadBytes size limit of an uploaded video
+     * @see #ExtractionService(InetSocketAddress, int, int, BlurDetectorType, AlignmentMode, MetricsRegistry, ResultCache)
+     */
+    ExtractionService(InetSocketAddress address, int workers, int queueCapacity,
+                      BlurDetectorType blurDetectorType, AlignmentMode alignmentMode,
+                      MetricsRegistry metricsRegistry, ResultCache resultCache, long maxUploadBytes) throws IOException {
+        this.maxUploadBytes = maxUploadBytes;
+        this.metricsRegistry = metricsRegistry;
+        this.resultCache = resultCache;
+        // The frames of a video are processed on the worker itself; the jobs are the unit of parallelism
+        this.receiptExtractor = ThreadLocal.withInitial(() -> new ReceiptExtractor(
+                Runnable::run, ReceiptExtractor.FrameSelection.SAMPLED, blurDetectorType, alignmentMode
+        ));
+        this.executor = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), new ThreadPoolExecutor.AbortPolicy());
+
+        server = HttpServer.create(address, 0);
+        server.createContext(JOBS_PATH, this::handle);
+        server.setExecutor(requestExecutor);
+        server.start();
+        logger.info("Listening on {} with {} workers", server.getAddress(), workers);
+    }
+
+    /**
+     * @return the address the service listens on
+     */
+    public InetSocketAddress getAddress() {
+        return server.getAddress();
+    }
+
+    /**
+     * Stops accepting requests, and waits for the running jobs to finish.
+     */
+    @Override
+    public void close() throws InterruptedException {
+        server.stop(0);
+        requestExecutor.shutdown();
+        executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String path = exchange.getRequestURI().getPath();
+            String method = exchange.getRequestMethod();
+            if (path.equals(JOBS_PATH) || path.equals(JOBS_PATH + "/")) {
+                if (method.equals("POST")) {
+                    submit(exchange);
+                } else {
+                    sendError(exchange, 405, "Jobs are submitted with POST");
+                }
+                return;
+            }
+
+            if (!method.equals("GET")) {
+                sendError(exchange, 405, "Jobs are read with GET");
+                return;
+            }
+
+            String id = path.substring(JOBS_PATH.length() + 1);
+            boolean result = id.endsWith(RESULT_SUFFIX);
+            if (result) {
+                id = id.substring(0, id.length() - RESULT_SUFFIX.length());
+            }
+
+            Job job = jobs.get(id);
+            if (job == null) {
+                sendError(exchange, 404, "Unknown job " + id);
+            } else if (result) {
+                sendResult(exchange, job);
+            } else {
+                sendJson(exchange, 200, job.toJson());
+            }
+        } catch (RuntimeException e) {
+            logger.warn("Failed to handle {} {}", exchange.getRequestMethod(), exchange.getRequestURI(), e);
+            sendError(exchange, 500, e.toString());
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void submit(HttpExchange exchange) throws IOException {
+        // Reject before reading an upload which would be discarded anyway
+        if (executor.getQueue().remainingCapacity() == 0) {
+            reject(exchange);
+            return;
+        }
+
+        String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+        Job job;
+        if (contentType != null && contentType.startsWith(JSON_CONTENT_TYPE)) {
+            JsonObject request;
+            try (InputStreamReader reader = new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8)) {
+                request = new JsonParser().parse(reader).getAsJsonObject();
+            } catch (JsonParseException | IllegalStateException e) {
+                sendError(exchange, 400, "Invalid JSON: " + e.getMessage());
+                return;
+            }
+
+            JsonElement path = request.get("path");
+            if (path == null || !path.isJsonPrimitive() || !path.getAsJsonPrimitive().isString()) {
+                sendError(exchange, 400, "Missing path, or not a string");
+                return;
+            }
+            Path video;
+            try {
+                video = Paths.get(path.getAsString());
+            } catch (InvalidPathException e) {
+                sendError(exchange, 400, "Invalid path: " + e.getMessage());
+                return;
+            }
+            if (!Files.isRegularFile(video)) {
+                sendError(exchange, 400, "Unreadable path");
+                return;
+            }
+
+            JsonElement detectGlare = request.get("detectGlare");
+            if (detectGlare != null && (!detectGlare.isJsonPrimitive() || !detectGlare.getAsJsonPrimitive().isBoolean())) {
+                sendError(exchange, 400, "detectGlare has to be a boolean");
+                return;
+            }
+            job = new Job(video, false, detectGlare != null && detectGlare.getAsBoolean());
+        } else {
+            // Reject a declared oversized upload before reading any of it
+            if (getContentLength(exchange) > maxUploadBytes) {
+                sendTooLarge(exchange);
+                return;
+            }
+
+            // The video is uploaded as body, and deleted once the job is done
+            Path upload = Files.createTempFile("receipt-upload", null);
+            boolean complete = false;
+            try (InputStream body = exchange.getRequestBody()) {
+                complete = copy(body, upload, maxUploadBytes);
+            } finally {
+                if (!complete) {
+                    Files.deleteIfExists(upload);
+                }
+            }
+            if (!complete) {
+                sendTooLarge(exchange);
+                return;
+            }
+            job = new Job(upload, true, false);
+        }
+
+        jobs.put(job.id, job);
+        try {
+            executor.execute(() -> run(job));
+        } catch (RejectedExecutionException e) {
+            jobs.remove(job.id);
+            job.deleteUpload();
+            reject(exchange);
+            return;
+        }
+
+        exchange.getResponseHeaders().set("Location", JOBS_PATH + "/" + job.id);
+        sendJson(exchange, 202, job.toJson());
+    }
+
+    /**
+     * @return the declared length of the request body, or -1 if not declared
+     */
+    private static long getContentLength(HttpExchange exchange) {
+        String length = exchange.getRequestHeaders().getFirst("Content-Length");
+        if (length == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(length.trim());
+        } catch (NumberFormatException e) {
+            // The size is still enforced while copying
+            return -1;
+        }
+    }
+
+    /**
+     * Copies a stream to a file, unless it's longer than the limit.
+     *
+     * @return whether the whole stream was copied, false if it exceeds the limit
+     */
+    private static boolean copy(InputStream in, Path file, long maxBytes) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        long copied = 0;
+        try (OutputStream out = Files.newOutputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                copied += read;
+                if (copied > maxBytes) {
+                    return false;
+                }
+                out.write(buffer, 0, read);
+            }
+        }
+        return true;
+    }
+
+    private void sendTooLarge(HttpExchange exchange) throws IOException {
+        logger.info("Rejected upload larger than {} bytes", maxUploadBytes);
+        sendError(exchange, 413, "Uploads are limited to " + maxUploadBytes + " bytes");
+    }
+
+    private void reject(HttpExchange exchange) throws IOException {
+        logger.info("Rejected job, {} jobs already queued", executor.getQueue().size());
+        exchange.getResponseHeaders().set("Retry-After", Integer.toString(RETRY_AFTER_SECONDS));
+        sendError(exchange, 429, "Too many queued jobs");
+    }
+
+    private void run(Job job) {
+        job.status = JobStatus.RUNNING;
+        PipelineMetrics metrics = new PipelineMetrics();
+        try {
+            job.result = metrics.call(() -> extractEncodedSuperReceipt(job));
+            job.status = JobStatus.DONE;
+        } catch (RuntimeException e) {
+            logger.warn("Job {} failed", job.id, e);
+            job.error = e.toString();
+            job.status = JobStatus.FAILED;
+        } finally {
+            job.report = metrics.report();
+            metricsRegistry.report(job.report);
+            job.deleteUpload();
+            forgetOldJobs(job);
+            // The next job may have another size, and the worker may stay idle
+            MatScope.drainPool();
+        }
+    }
+
+    private byte[] extractEncodedSuperReceipt(Job job) {
+        try {
+            return receiptExtractor.get().extractEncodedSuperReceipt(
+                    job.video, job.detectGlare, RESULT_EXTENSION, resultCache
+            );
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void forgetOldJobs(Job finished) {
+        finishedJobs.add(finished.id);
+        while (finishedJobs.size() > MAX_FINISHED_JOBS) {
+            String id = finishedJobs.poll();
+            if (id != null) {
+                jobs.remove(id);
+            }
+        }
+    }
+
+    private void sendResult(HttpExchange exchange, Job job) throws IOException {
+        if (job.status == JobStatus.FAILED) {
+            sendError(exchange, 422, job.error);
+        } else if (job.status != JobStatus.DONE) {
+            sendError(exchange, 409, "Job is " + job.status);
+        } else {
+            send(exchange, 200, IMAGE_CONTENT_TYPE, job.result);
+        }
+    }
+
+    private static void sendError(HttpExchange exchange, int status, String message) throws IOException {
+        JsonObject error = new JsonObject();
+        error.addProperty("error", message);
+        sendJson(exchange, status, error);
+    }
+
+    private static void sendJson(HttpExchange exchange, int status, JsonObject json) throws IOException {
+        send(exchange, status, JSON_CONTENT_TYPE, json.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void send(HttpExchange exchange, int status, String contentType, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    enum JobStatus {
+        QUEUED,
+        RUNNING,
+        DONE,
+        FAILED
+    }
+
+    private static class Job {
+        private final String id = UUID.randomUUID().toString();
+        private final Path video;
+        private final boolean uploaded;
+        private final boolean detectGlare;
+
+        // Written by the worker, read by the request threads
+        private volatile JobStatus status = JobStatus.QUEUED;
+        private volatile String error;
+        private volatile byte[] result;
+        private volatile MetricsReport report;
+
+        Job(Path video, boolean uploaded, boolean detectGlare) {
+            this.video = video;
+            this.uploaded = uploaded;
+            this.detectGlare = detectGlare;
+        }
+
+        private void deleteUpload() {
+            if (!uploaded) {
+                return;
+            }
+            try {
+                Files.deleteIfExists(video);
+            } catch (IOException e) {
+                logger.warn("Failed to delete upload {}", video, e);
+            }
+        }
+
+        private JsonObject toJson() {
+            JsonObject json = new JsonObject();
+            json.addProperty("id", id);
+            json.addProperty("status", status.name());
+            if (error != null) {
+                json.addProperty("error", error);
+            }
+            if (report != null) {
+                json.addProperty("elapsedMillis", TimeUnit.NANOSECONDS.toMillis(report.getElapsedNanos()));
+                JsonObject stages = new JsonObject();
+                for (Stage stage : Stage.values()) {
+                    stages.addProperty(stage.getMetricName(), TimeUnit.NANOSECONDS.toMillis(report.getNanos(stage)));
+                }
+                json.add("stageMillis", stages);
+                json.addProperty(Counter.FAILED_EXTRACTIONS.getMetricName(),
+                        report.getCount(Counter.FAILED_EXTRACTIONS));
+            }
+            if (status == JobStatus.DONE) {
+                json.addProperty("result", JOBS_PATH + "/" + id + RESULT_SUFFIX);
+            }
+            return json;
+        }
+    }
+}
@@ -1,17 +1,49 @@
+import blurDetectors.BlurDetectorType;
+import cache.ResultCache;
+import metrics.MetricsRegistry;
+import metrics.MetricsReport;
+import metrics.PipelineMetrics;
+import metrics.Stage;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.opencv.core.*;
 import org.opencv.imgcodecs.Imgcodecs;
 import org.opencv.videoio.VideoCapture;
+import utilities.AlignmentMode;
+import utilities.CameraResponseCache;
 import utilities.HDRCreator;
+import utilities.HDRRegion;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Stream;
 
 public class Main {
 
     private static final Logger logger = LogManager.getLogger(Main.class);
     private static final String HDR_MODE = "hdr";
     private static final String VIDEO_MODE = "video";
+    private static final String BATCH_MODE = "batch";
+    private static final String SERVE_MODE = "serve";
+    private static final String BLUR_DETECTOR_PROPERTY = "blurDetector";
+    private static final String ALIGNMENT_PROPERTY = "alignment";
+    private static final String METRICS_PROPERTY = "metrics";
+    private static final String BATCH_WORKERS_PROPERTY = "batch.workers";
+    private static final String BATCH_IN_FLIGHT_PROPERTY = "batch.inFlight";
+    private static final String SERVICE_QUEUE_PROPERTY = "service.queue";
+    private static final int DEFAULT_SERVICE_PORT = 8080;
+    private static final String CACHE_DIRECTORY_PROPERTY = "cache.dir";
+    private static final String CACHE_DISK_BYTES_PROPERTY = "cache.diskBytes";
+    private static final String CACHE_MEMORY_BYTES_PROPERTY = "cache.memoryBytes";
+    private static final long DEFAULT_CACHE_DISK_BYTES = 1L << 30;
+    private static final long DEFAULT_CACHE_MEMORY_BYTES = 64L << 20;
+    private static final String RESPONSE_CACHE_PROPERTY = "hdr.responseCache";
+    private static final String HDR_REGION_PROPERTY = "hdr.region";
 
     public static void main(String[] args) throws IOException {
         String opencvNative = "C:\\Users\\contact_jacob_lundbe\\Documents\\ReciptBackend\\opencv\\";
@@ -25,10 +57,78 @@ public class Main {
 
             VideoCapture videoCapture = new VideoCapture(videoPath);
             boolean detectGlare = false;
-            Mat extractReceipt = new ReceiptExtractor().extractSuperReceipt(videoCapture, detectGlare);
+            // E.g. -DblurDetector=brenner, see BlurDetectorType
+            BlurDetectorType blurDetectorType = BlurDetectorType.fromName(
+                    System.getProperty(BLUR_DETECTOR_PROPERTY, BlurDetectorType.TENENGRAD.name())
+            );
+            AlignmentMode alignmentMode = getAlignmentMode();
+            // E.g. -Dmetrics=jmx or -Dmetrics=prometheus:9400, see MetricsRegistry
+            MetricsRegistry metricsRegistry = MetricsRegistry.fromName(
+                    System.getProperty(METRICS_PROPERTY, "none")
+            );
+            PipelineMetrics metrics = new PipelineMetrics();
+            ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+            try {
+                ReceiptExtractor receiptExtractor =
+                        new ReceiptExtractor(executor, ReceiptExtractor.FrameSelection.SAMPLED, blurDetectorType,
+                                alignmentMode);
+                Mat extractReceipt = metrics.call(() -> receiptExtractor.extractSuperReceipt(videoCapture, detectGlare));
 
-            String outPath = args[2];
-            Imgcodecs.imwrite(outPath, extractReceipt);
+                String outPath = args[2];
+                metrics.time(Stage.ENCODE, () -> Imgcodecs.imwrite(outPath, extractReceipt));
+
+                MetricsReport report = metrics.report();
+                logger.info("Extracted receipt: {}", report);
+                metricsRegistry.report(report);
+            } finally {
+                executor.shutdown();
+                metricsRegistry.close();
+            }
+        }
+
+        else if(mode.equals(BATCH_MODE)) {
+            // A directory of videos, or a manifest with one video per line
+            Path source = Paths.get(args[1]);
+            Path outputDirectory = Paths.get(args[2]);
+
+            BlurDetectorType blurDetectorType = BlurDetectorType.fromName(
+                    System.getProperty(BLUR_DETECTOR_PROPERTY, BlurDetectorType.TENENGRAD.name())
+            );
+            AlignmentMode alignmentMode = getAlignmentMode();
+            // E.g. -Dbatch.workers=8 -Dbatch.inFlight=16
+            int workers = Integer.getInteger(BATCH_WORKERS_PROPERTY, Runtime.getRuntime().availableProcessors());
+            int maxInFlight = Integer.getInteger(BATCH_IN_FLIGHT_PROPERTY, 2 * workers);
+
+            try (MetricsRegistry metricsRegistry = MetricsRegistry.fromName(System.getProperty(METRICS_PROPERTY, "none"));
+                 Stream<Path> videos = BatchProcessor.listVideos(source)) {
+                new BatchProcessor(workers, maxInFlight, blurDetectorType, alignmentMode, metricsRegistry,
+                        createResultCache())
+                        .process(videos, outputDirectory);
+            }
+        }
+
+        else if(mode.equals(SERVE_MODE)) {
+            int port = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_SERVICE_PORT;
+            BlurDetectorType blurDetectorType = BlurDetectorType.fromName(
+                    System.getProperty(BLUR_DETECTOR_PROPERTY, BlurDetectorType.TENENGRAD.name())
+            );
+            AlignmentMode alignmentMode = getAlignmentMode();
+            int workers = Runtime.getRuntime().availableProcessors();
+            // E.g. -Dservice.queue=64
+            int queueCapacity = Integer.getInteger(SERVICE_QUEUE_PROPERTY, 4 * workers);
+
+            MetricsRegistry metricsRegistry = MetricsRegistry.fromName(System.getProperty(METRICS_PROPERTY, "none"));
+            ExtractionService service = new ExtractionService(new InetSocketAddress("localhost", port),
+                    workers, queueCapacity, blurDetectorType, alignmentMode, metricsRegistry, createResultCache());
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    service.close();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    metricsRegistry.close();
+                }
+            }));
         }
 
         else if(mode.equals(HDR_MODE)) {
@@ -36,8 +136,43 @@ public class Main {
             String method = args[2];
             String resultPath = args[3];
 
-            Mat out = HDRCreator.createHDR(path, method);
+            // E.g. -Dhdr.responseCache=camera-responses.properties
+            String responseCacheFile = System.getProperty(RESPONSE_CACHE_PROPERTY);
+            CameraResponseCache responseCache = responseCacheFile == null
+                    ? null
+                    : new CameraResponseCache(Paths.get(responseCacheFile));
+
+            // E.g. -Dhdr.region=receipt, to only merge the receipt's pixels
+            HDRRegion region = HDRRegion.valueOf(
+                    System.getProperty(HDR_REGION_PROPERTY, HDRRegion.FULL_IMAGE.name()).toUpperCase(Locale.ROOT)
+            );
+
+            Mat out = HDRCreator.createHDR(path, method, responseCache, region);
             Imgcodecs.imwrite(resultPath, out);
         }
     }
+
+    /**
+     * Reads how receipts are aligned, e.g. -Dalignment=full, see AlignmentMode.
+     *
+     * @return the alignment mode, {@link AlignmentMode#PYRAMID} if not configured
+     */
+    private static AlignmentMode getAlignmentMode() {
+        return AlignmentMode.fromName(System.getProperty(ALIGNMENT_PROPERTY, AlignmentMode.PYRAMID.name()));
+    }
+
+    /**
+     * Creates the cache of extracted receipts, e.g. -Dcache.dir=cache -Dcache.diskBytes=1073741824.
+     *
+     * @return the cache, or null if no cache directory is configured
+     */
+    private static ResultCache createResultCache() throws IOException {
+        String directory = System.getProperty(CACHE_DIRECTORY_PROPERTY);
+        if (directory == null) {
+            return null;
+        }
+        return new ResultCache(Paths.get(directory),
+                Long.getLong(CACHE_DISK_BYTES_PROPERTY, DEFAULT_CACHE_DISK_BYTES),
+                Long.getLong(CACHE_MEMORY_BYTES_PROPERTY, DEFAULT_CACHE_MEMORY_BYTES));
+    }
 }
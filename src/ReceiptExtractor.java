@@ -1,29 +1,129 @@
+import blurDetectors.BlurDetectorType;
+import cache.ResultCache;
+import metrics.Counter;
+import metrics.PipelineMetrics;
+import metrics.Stage;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.opencv.core.Core;
 import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.imgcodecs.Imgcodecs;
 import org.opencv.videoio.VideoCapture;
+import utilities.AlignmentMode;
+import utilities.CornerTracker;
+import utilities.DetectionMode;
 import utilities.EdgeDetector;
 import utilities.ReceiptAligner;
+import receiptMergers.BestFrameSelector;
 import receiptMergers.ReceiptMerger;
+import utilities.FrameSamplingMode;
+import utilities.MatScope;
 import utilities.VideoSplitter;
 
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.stream.Collectors;
 
 public class ReceiptExtractor {
 
     // @todo Set these constants based on the video itself?
     private final static int NUM_SPLITTED_FRAMES = 30;
 
+    /**
+     * Version of the pipeline, part of the key of cached results. Has to be
+     * increased whenever a change of the pipeline changes its results.
+     */
+    private final static int PIPELINE_VERSION = 1;
+
     private static final Logger logger = LogManager.getLogger(ReceiptExtractor.class);
 
-    private final EdgeDetector edgeDetector = new EdgeDetector();
-    private final ReceiptAligner receiptAligner = new ReceiptAligner();
-    private final ReceiptMerger receiptMerger = new ReceiptMerger(false);
+    // Neither the edge detector nor the aligner are thread-safe, hence one per thread
+    private final ThreadLocal<EdgeDetector> edgeDetector =
+            ThreadLocal.withInitial(() -> new EdgeDetector(DetectionMode.MULTI_RESOLUTION));
+    private final ThreadLocal<ReceiptAligner> receiptAligner;
+    private final ReceiptMerger receiptMerger;
+
+    /**
+     * Executor which the frames are processed on.
+     */
+    private final Executor executor;
+
+    /**
+     * How the frames which receipts are extracted from are selected.
+     */
+    private final FrameSelection frameSelection;
+
+    private final BlurDetectorType blurDetectorType;
+
+    private final AlignmentMode alignmentMode;
+
+    /**
+     * Creates an extractor which processes all frames on the calling thread.
+     */
+    public ReceiptExtractor() {
+        this(Runnable::run);
+    }
+
+    /**
+     * Creates an extractor which processes the frames of a video in parallel.
+     *
+     * @param executor Executor which frames are extracted and aligned on
+     */
+    public ReceiptExtractor(Executor executor) {
+        this(executor, FrameSelection.SAMPLED);
+    }
+
+    /**
+     * Creates an extractor which processes the frames of a video in parallel.
+     *
+     * @param executor Executor which frames are extracted and aligned on
+     * @param frameSelection How the frames to extract receipts from should be selected
+     */
+    public ReceiptExtractor(Executor executor, FrameSelection frameSelection) {
+        this(executor, frameSelection, BlurDetectorType.TENENGRAD);
+    }
 
     /**
-     * Extracts all receipts found from a video stream.
+     * Creates an extractor which processes the frames of a video in parallel.
+     *
+     * @param executor Executor which frames are extracted and aligned on
+     * @param frameSelection How the frames to extract receipts from should be selected
+     * @param blurDetectorType Detector used to score frames and sections
+     */
+    public ReceiptExtractor(Executor executor, FrameSelection frameSelection, BlurDetectorType blurDetectorType) {
+        this(executor, frameSelection, blurDetectorType, AlignmentMode.PYRAMID);
+    }
+
+    /**
+     * Creates an extractor which processes the frames of a video in parallel.
+     *
+     * @param executor Executor which frames are extracted and aligned on
+     * @param frameSelection How the frames to extract receipts from should be selected
+     * @param blurDetectorType Detector used to score frames and sections
+     * @param alignmentMode How the receipts are aligned after the reference receipt
+     */
+    public ReceiptExtractor(Executor executor, FrameSelection frameSelection, BlurDetectorType blurDetectorType,
+                            AlignmentMode alignmentMode) {
+        this.executor = executor;
+        this.frameSelection = frameSelection;
+        this.blurDetectorType = blurDetectorType;
+        this.alignmentMode = alignmentMode;
+        this.receiptAligner = ThreadLocal.withInitial(() -> new ReceiptAligner(alignmentMode));
+        this.receiptMerger = new ReceiptMerger(false, blurDetectorType.create());
+    }
+
+    /**
+     * Extracts all receipts found from a video stream. Timings and counters are
+     * recorded into the {@link PipelineMetrics} bound to the calling thread, if any.
      *
      * @param source Video stream to extract receipt from
      * @param detectGlare Whether anti-glare methods should be automatically applied. Should be `true` if flash was used.
@@ -31,39 +131,104 @@ public class ReceiptExtractor {
      */
     public List<Mat> extractReceipts(VideoCapture source, boolean detectGlare) {
         logger.info("Extracting receipt from video capture [detectGlare={}]", detectGlare);
-        // Split the video to frames and select the best frames.
-        List<Mat> frames = VideoSplitter.getFrames(source, NUM_SPLITTED_FRAMES);
-        if (frames.isEmpty()) {
+        // The metrics of this job, which the worker threads record into
+        final PipelineMetrics metrics = PipelineMetrics.current();
+        // Split the video to frames and select the best frames. Frames are scored
+        // as they are decoded, and only the best frames so far are kept in memory.
+        BestFrameSelector frameSelector = receiptMerger.createBestFrameSelector(NUM_SPLITTED_FRAMES / 2);
+        // Corners of the receipt in each frame, when tracked while decoding
+        final Map<Mat, MatOfPoint2f> trackedCorners = frameSelection == FrameSelection.TRACKED
+                ? new IdentityHashMap<>()
+                : null;
+        if (trackedCorners != null) {
+            // Only the corners of the kept frames are held on to
+            frameSelector.setDiscardListener(frame -> {
+                MatOfPoint2f corners = trackedCorners.remove(frame);
+                if (corners != null) {
+                    corners.release();
+                }
+            });
+        }
+        switch (frameSelection) {
+            case SAMPLED:
+                VideoSplitter.forEachFrame(source, NUM_SPLITTED_FRAMES, FrameSamplingMode.AUTOMATIC, frameSelector::offer);
+                break;
+            case ALL_FRAMES:
+                VideoSplitter.forEachFrame(source, 0, FrameSamplingMode.SEQUENTIAL, frameSelector::offer);
+                break;
+            case TRACKED:
+                trackCorners(source, detectGlare, frameSelector, trackedCorners);
+                break;
+        }
+        if (frameSelector.getOffered() == 0) {
             throw new IllegalArgumentException(
                     "Splitted video to 0 frames. If the source isn't empty, ensure that OpenCV is installed correctly."
             );
         }
-        logger.info("Splitted capture to {} frames", frames.size());
+        logger.info("Splitted capture to {} frames", frameSelector.getOffered());
 
-        frames = receiptMerger.getBestFrames(frames, frames.size() / 2);
+        List<Mat> frames = frameSelector.takeBestFrames(frameSelector.getOffered() / 2);
         logger.info("Selected the {} best frames", frames.size());
 
-        rotateFrames(frames);
+        if (trackedCorners == null) {
+            // Tracked frames are rotated before tracking
+            frames.forEach(this::rotateFrame);
+        }
 
-        // Extract the receipt from the frames
-        Mat reference = null;
-        List<Mat> receipts = new ArrayList<>();
-        for (Mat frame : frames) {
-            Mat receipt = edgeDetector.extractBiggestObject(frame, detectGlare);
+        // Extract the receipt from the frames. The frames are independent,
+        // so they are processed in parallel but collected in frame order.
+        List<Mat> extracted = joinAll(frames.stream()
+                .map(frame -> CompletableFuture.supplyAsync(
+                        () -> metrics.call(() -> extractAndRelease(frame, detectGlare, trackedCorners)), executor
+                ))
+                .collect(Collectors.toList()));
+        if (trackedCorners != null) {
+            // Released along with their frames
+            trackedCorners.clear();
+        }
+
+        List<Mat> candidates = new ArrayList<>();
+        for (Mat receipt : extracted) {
             if (receipt == null) {
                 logger.warn("Failed to extract receipt from frame");
+                metrics.increment(Counter.FAILED_EXTRACTIONS);
                 continue;
             }
+            candidates.add(receipt);
+        }
 
-            if (reference == null) {
-                reference = receipt; // @todo We may want to select the reference in another way
-            }
+        if (candidates.isEmpty()) {
+            logger.info("Extracted 0 receipts from {} frames", frames.size());
+            return candidates;
+        }
 
-            // Align images to fit the reference
-            Mat aligned = receiptAligner.align(reference, receipt);
+        // @todo We may want to select the reference in another way
+        final Mat reference = candidates.get(0);
+        // The features of the reference are detected once, and shared by all threads
+        final ReceiptAligner.Reference preparedReference = metrics.time(
+                Stage.ALIGNMENT, () -> receiptAligner.get().prepareReference(reference)
+        );
 
-            logger.info("Extracted receipt from frame successfully");
-            receipts.add(aligned);
+        // Align images to fit the reference
+        List<Mat> aligned;
+        try {
+            aligned = joinAll(candidates.stream()
+                    .map(receipt -> CompletableFuture.supplyAsync(
+                            () -> metrics.call(() -> alignAndRelease(preparedReference, receipt)), executor
+                    ))
+                    .collect(Collectors.toList()));
+        } finally {
+            preparedReference.release();
+        }
+
+        List<Mat> receipts = new ArrayList<>();
+        for (Mat receipt : aligned) {
+            if (receipt == null) {
+                logger.warn("Failed to align receipt with the reference");
+                metrics.increment(Counter.FAILED_ALIGNMENTS);
+                continue;
+            }
+            receipts.add(receipt);
         }
 
         logger.info("Extracted {} receipts from {} frames", receipts.size(), frames.size());
@@ -82,15 +247,220 @@ public class ReceiptExtractor {
         List<Mat> receipts = extractReceipts(source, detectGlare);
 
         logger.info("Combining frames to one super frame");
-        // Merge receipts into super-image
-        return receiptMerger.createImageRows(receipts);
+        // Merge receipts into super-image. The merged image is a copy,
+        // so the receipts can be released as soon as it's created.
+        try {
+            return receiptMerger.createImageRows(receipts);
+        } finally {
+            for (Mat receipt : receipts) {
+                receipt.release();
+            }
+        }
     }
 
-    private void rotateFrames(List<Mat> frames) {
-        for (Mat frame : frames) {
-            if (frame.width() > frame.height()) {
-                Core.flip(frame.t(), frame, Core.ROTATE_90_COUNTERCLOCKWISE);
+    /**
+     * Extracts a receipt from a video file, and encodes it. If a cache is given,
+     * the result of an earlier extraction of the same content with the same
+     * configuration is returned instead, without decoding the video.
+     *
+     * @param video Video file to extract receipt from
+     * @param detectGlare Whether anti-glare methods should be automatically applied. Should be `true` if flash was used.
+     * @param extension Extension of the image format to encode the receipt in, e.g. ".png"
+     * @param resultCache Cache of encoded receipts, or null to always extract the receipt
+     * @return The encoded receipt
+     * @throws IOException if the video couldn't be read to look it up in the cache
+     */
+    public byte[] extractEncodedSuperReceipt(Path video, boolean detectGlare, String extension,
+                                             ResultCache resultCache) throws IOException {
+        final PipelineMetrics metrics = PipelineMetrics.current();
+        String key = null;
+        if (resultCache != null) {
+            key = ResultCache.createKey(video, getConfiguration(detectGlare, extension));
+            byte[] cached = resultCache.get(key);
+            if (cached != null) {
+                logger.info("Found cached receipt of {}", video);
+                metrics.increment(Counter.CACHE_HITS);
+                return cached;
+            }
+            metrics.increment(Counter.CACHE_MISSES);
+        }
+
+        Mat receipt = extractSuperReceipt(new VideoCapture(video.toString()), detectGlare);
+        MatOfByte buffer = new MatOfByte();
+        boolean encoded = metrics.time(Stage.ENCODE, () -> Imgcodecs.imencode(extension, receipt, buffer));
+        receipt.release();
+        if (!encoded) {
+            throw new IllegalArgumentException("Failed to encode receipt as " + extension);
+        }
+        byte[] result = buffer.toArray();
+        buffer.release();
+
+        if (MatScope.isDebug()) {
+            Map<Stage, Integer> unreleased = metrics.findUnreleasedMats();
+            if (!unreleased.isEmpty()) {
+                logger.warn("Unreleased Mats after extracting {}, by stage: {}", video, unreleased);
+            }
+        }
+
+        if (resultCache != null) {
+            resultCache.put(key, result);
+        }
+        return result;
+    }
+
+    /**
+     * Describes everything which affects the encoded receipt extracted by
+     * this extractor, apart from the video itself.
+     *
+     * @param detectGlare Whether anti-glare methods are applied
+     * @param extension Extension of the image format the receipt is encoded in
+     * @return the configuration
+     */
+    String getConfiguration(boolean detectGlare, String extension) {
+        return String.format("version=%d;frames=%d;selection=%s;blurDetector=%s;alignment=%s;detectGlare=%b;format=%s",
+                PIPELINE_VERSION, NUM_SPLITTED_FRAMES, frameSelection, blurDetectorType, alignmentMode, detectGlare,
+                extension);
+    }
+
+    /**
+     * Decodes every frame of the video, tracking the corners of the receipt from
+     * frame to frame. Frames where the receipt was found are offered to the selector.
+     *
+     * @param source Video stream to extract receipt from
+     * @param detectGlare Whether anti-glare methods should be applied when detecting corners from scratch
+     * @param frameSelector selector of the best frames
+     * @param trackedCorners map which the corners of each offered frame is put in
+     */
+    private void trackCorners(VideoCapture source, boolean detectGlare, BestFrameSelector frameSelector,
+                              Map<Mat, MatOfPoint2f> trackedCorners) {
+        final PipelineMetrics metrics = PipelineMetrics.current();
+        CornerTracker cornerTracker = new CornerTracker(edgeDetector.get(), detectGlare);
+        VideoSplitter.forEachFrame(source, 0, FrameSamplingMode.SEQUENTIAL, frame -> {
+            rotateFrame(frame);
+            MatOfPoint2f corners = metrics.time(Stage.EDGE_DETECTION, () -> cornerTracker.findCorners(frame));
+            if (corners == null) {
+                logger.warn("Failed to find receipt in frame");
+                metrics.increment(Counter.FAILED_EXTRACTIONS);
+                frame.release();
+                return;
+            }
+
+            trackedCorners.put(frame, corners);
+            frameSelector.offer(frame);
+        });
+        cornerTracker.release();
+
+        logger.info("Detected corners in {} keyframes, tracked corners in {} frames",
+                cornerTracker.getKeyframes(), cornerTracker.getTrackedFrames());
+    }
+
+    /**
+     * Extracts the receipt from the given frame, releasing the frame, and its tracked corners, once done.
+     *
+     * @param frame frame to extract the receipt from
+     * @param detectGlare Whether anti-glare methods should be automatically applied
+     * @param trackedCorners tracked corners of the frames, or null if not tracked
+     * @return the extracted receipt, or null if extraction failed
+     */
+    private Mat extractAndRelease(Mat frame, boolean detectGlare, Map<Mat, MatOfPoint2f> trackedCorners) {
+        final PipelineMetrics metrics = PipelineMetrics.current();
+        try {
+            Mat receipt = metrics.time(Stage.EDGE_DETECTION, () -> trackedCorners != null
+                    ? edgeDetector.get().extractObject(frame, trackedCorners.get(frame))
+                    : edgeDetector.get().extractBiggestObject(frame, detectGlare));
+            metrics.trackAllocation(receipt);
+            return receipt;
+        } finally {
+            frame.release();
+            if (trackedCorners != null) {
+                // Only read while extracting, hence released here. The entry stays in the map,
+                // which the frames only read concurrently, until it's cleared after the join.
+                trackedCorners.get(frame).release();
             }
         }
     }
+
+    /**
+     * Aligns the given receipt after the reference, releasing the receipt once done.
+     *
+     * @param reference prepared reference receipt
+     * @param receipt receipt to be aligned
+     * @return aligned receipt, or null if it couldn't be aligned
+     */
+    private Mat alignAndRelease(ReceiptAligner.Reference reference, Mat receipt) {
+        final PipelineMetrics metrics = PipelineMetrics.current();
+        try {
+            Mat aligned = metrics.time(Stage.ALIGNMENT, () -> receiptAligner.get().align(reference, receipt));
+            metrics.trackAllocation(aligned);
+            return aligned;
+        } finally {
+            receipt.release();
+        }
+    }
+
+    /**
+     * Waits for all the given futures to complete. If any of them failed, the Mats
+     * of the others are released, and the first failure is rethrown.
+     *
+     * @param futures futures to wait for
+     * @return the results of the futures, in the same order
+     */
+    private static List<Mat> joinAll(List<CompletableFuture<Mat>> futures) {
+        List<Mat> results = new ArrayList<>();
+        RuntimeException failure = null;
+        for (CompletableFuture<Mat> future : futures) {
+            try {
+                results.add(future.join());
+            } catch (CompletionException e) {
+                RuntimeException cause = e.getCause() instanceof RuntimeException
+                        ? (RuntimeException) e.getCause()
+                        : e;
+                if (failure == null) {
+                    failure = cause;
+                } else {
+                    failure.addSuppressed(cause);
+                }
+            }
+        }
+
+        if (failure != null) {
+            // Nobody else holds on to the results of the other frames
+            for (Mat result : results) {
+                if (result != null) {
+                    result.release();
+                }
+            }
+            throw failure;
+        }
+        return results;
+    }
+
+    private void rotateFrame(Mat frame) {
+        if (frame.width() > frame.height()) {
+            Mat transposed = frame.t();
+            Core.flip(transposed, frame, Core.ROTATE_90_COUNTERCLOCKWISE);
+            transposed.release();
+        }
+    }
+
+    /**
+     * How the frames which receipts are extracted from are selected.
+     */
+    public enum FrameSelection {
+        /**
+         * Select the best frames among NUM_SPLITTED_FRAMES evenly distributed frames.
+         */
+        SAMPLED,
+
+        /**
+         * Select the best frames among all frames of the video.
+         */
+        ALL_FRAMES,
+
+        /**
+         * Select the best frames among all frames of the video, tracking the receipt
+         * from frame to frame instead of detecting it in every selected frame.
+         */
+        TRACKED
+    }
 }
@@ -0,0 +1,38 @@
+package blurDetectors;
+
+import java.util.Locale;
+import java.util.function.Supplier;
+
+/**
+ * Enumerates the available blur detectors, making them selectable by name.
+ */
+public enum BlurDetectorType {
+    TENENGRAD(TenengradBlurDetector::new),
+    LAPLACIAN_VARIANCE(LaplacianVarianceBlurDetector::new),
+    BRENNER(BrennerBlurDetector::new),
+    MODIFIED_LAPLACIAN(ModifiedLaplacianBlurDetector::new);
+
+    private final Supplier<BlurDetector> factory;
+
+    BlurDetectorType(Supplier<BlurDetector> factory) {
+        this.factory = factory;
+    }
+
+    /**
+     * @return a new detector of this type
+     */
+    public BlurDetector create() {
+        return factory.get();
+    }
+
+    /**
+     * Finds a detector type by its name, e.g. "tenengrad" or "laplacian-variance".
+     *
+     * @param name name of the detector type, case insensitive
+     * @return the matching type
+     * @throws IllegalArgumentException if no type matches the name
+     */
+    public static BlurDetectorType fromName(String name) {
+        return valueOf(name.trim().toUpperCase(Locale.ROOT).replace('-', '_'));
+    }
+}
@@ -0,0 +1,46 @@
+package blurDetectors;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * BlurDetector using the Brenner gradient, i.e. the squared difference
+ * between pixels two steps apart. This is the cheapest of the detectors,
+ * as no gradient image has to be created.
+ */
+public class BrennerBlurDetector implements BlurDetector {
+
+    private static final int STEP = 2;
+
+    private static final ThreadLocal<Mat> gray = ThreadLocal.withInitial(Mat::new);
+
+    /**
+     * {@inheritDoc}
+     */
+    public double getVariance(Mat source) {
+        if (source.width() <= STEP || source.height() <= STEP) {
+            return 0;
+        }
+
+        Mat matGray = source;
+        if (source.channels() > 1) {
+            matGray = gray.get();
+            Imgproc.cvtColor(source, matGray, Imgproc.COLOR_BGR2GRAY);
+        }
+
+        final int width = matGray.width();
+        final int height = matGray.height();
+
+        // The norm of the difference between two shifted views of the image is
+        // computed natively, without creating the difference image.
+        double horizontal = Core.norm(
+                matGray.colRange(STEP, width), matGray.colRange(0, width - STEP), Core.NORM_L2SQR
+        );
+        double vertical = Core.norm(
+                matGray.rowRange(STEP, height), matGray.rowRange(0, height - STEP), Core.NORM_L2SQR
+        );
+
+        return (horizontal + vertical) / matGray.total();
+    }
+}
@@ -0,0 +1,46 @@
+package blurDetectors;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDouble;
+import org.opencv.imgproc.Imgproc;
+
+import static org.opencv.core.CvType.CV_32F;
+
+/**
+ * BlurDetector using the variance of the Laplacian. A sharp image has many
+ * strong edges, which gives a Laplacian with a high variance.
+ */
+public class LaplacianVarianceBlurDetector implements BlurDetector {
+
+    private static final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
+
+    /**
+     * {@inheritDoc}
+     */
+    public double getVariance(Mat source) {
+        if (source.empty()) {
+            return 0;
+        }
+
+        Scratch buffers = scratch.get();
+        Mat gray = source;
+        if (source.channels() > 1) {
+            Imgproc.cvtColor(source, buffers.gray, Imgproc.COLOR_BGR2GRAY);
+            gray = buffers.gray;
+        }
+
+        Imgproc.Laplacian(gray, buffers.laplacian, CV_32F);
+        Core.meanStdDev(buffers.laplacian, buffers.mean, buffers.stdDev);
+
+        double stdDev = buffers.stdDev.get(0, 0)[0];
+        return stdDev * stdDev;
+    }
+
+    private static class Scratch {
+        private final Mat gray = new Mat();
+        private final Mat laplacian = new Mat();
+        private final MatOfDouble mean = new MatOfDouble();
+        private final MatOfDouble stdDev = new MatOfDouble();
+    }
+}
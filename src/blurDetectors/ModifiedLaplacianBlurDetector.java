@@ -0,0 +1,76 @@
+package blurDetectors;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.Scalar;
+import org.opencv.imgproc.Imgproc;
+
+import static org.opencv.core.CvType.CV_32F;
+import static org.opencv.core.CvType.CV_64F;
+
+/**
+ * BlurDetector using the (sum-)modified Laplacian, which sums the absolute
+ * second derivatives in x and y instead of letting them cancel out like in
+ * the regular Laplacian.
+ */
+public class ModifiedLaplacianBlurDetector implements PixelResponseBlurDetector {
+
+    private static final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
+
+    /**
+     * {@inheritDoc}
+     */
+    public double getVariance(Mat source) {
+        if (source.empty()) {
+            return 0;
+        }
+
+        Scratch buffers = scratch.get();
+        secondDerivatives(source, buffers);
+
+        // The L1-norm is the sum of the absolute values
+        double sum = Core.norm(buffers.dxx, Core.NORM_L1) + Core.norm(buffers.dyy, Core.NORM_L1);
+        return sum / source.total();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public double[] getRowResponseSums(Mat source) {
+        double[] rowSums = new double[source.rows()];
+        if (source.empty()) {
+            return rowSums;
+        }
+
+        Scratch buffers = scratch.get();
+        secondDerivatives(source, buffers);
+
+        // |dxx| + |dyy| for every pixel, summed per row
+        Core.absdiff(buffers.dxx, Scalar.all(0), buffers.dxx);
+        Core.absdiff(buffers.dyy, Scalar.all(0), buffers.dyy);
+        Core.add(buffers.dxx, buffers.dyy, buffers.dxx);
+        Core.reduce(buffers.dxx, buffers.rowSums, 1, Core.REDUCE_SUM, CV_64F);
+
+        buffers.rowSums.get(0, 0, rowSums);
+        return rowSums;
+    }
+
+    private void secondDerivatives(Mat source, Scratch buffers) {
+        Mat gray = source;
+        if (source.channels() > 1) {
+            Imgproc.cvtColor(source, buffers.gray, Imgproc.COLOR_BGR2GRAY);
+            gray = buffers.gray;
+        }
+
+        // A Sobel of order 2 with kernel size 1 is the [1, -2, 1] kernel
+        Imgproc.Sobel(gray, buffers.dxx, CV_32F, 2, 0, 1, 1, 0);
+        Imgproc.Sobel(gray, buffers.dyy, CV_32F, 0, 2, 1, 1, 0);
+    }
+
+    private static class Scratch {
+        private final Mat gray = new Mat();
+        private final Mat dxx = new Mat();
+        private final Mat dyy = new Mat();
+        private final Mat rowSums = new Mat();
+    }
+}
@@ -0,0 +1,70 @@
+package blurDetectors;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Range;
+
+import java.util.function.ToDoubleFunction;
+
+/**
+ * A BlurDetector whose variance is the mean of a per-pixel focus response.
+ * The response of a whole image can then be computed once, and any range of
+ * rows scored from the row sums without running the detector again.
+ *
+ * The response of a pixel may only depend on the rows directly above and below it,
+ * i.e. the filters have a kernel of at most 3 rows.
+ */
+public interface PixelResponseBlurDetector extends BlurDetector {
+
+    /**
+     * Calculates the sum of the focus response of every row in the source.
+     * The variance of a range of rows is the sum of their row sums divided
+     * by the number of pixels in the range, apart from the first and last
+     * row of the range; see {@link #createRangeScorer}.
+     *
+     * @param source the image in for of a mat
+     * @return sum of the focus response, indexed by row
+     */
+    double[] getRowResponseSums(Mat source);
+
+    /**
+     * Creates a function which gives the variance of a range of rows of the source,
+     * the same as {@link #getVariance} of that range. The response of the source is
+     * computed once, and a range is scored from the prefix sums of its rows.
+     *
+     * Scored on its own, a range is converted to a new gray Mat first, so the filters
+     * see a reflected border instead of the rows around the range. Only the first and
+     * last row of the range respond differently, hence only those are recomputed.
+     *
+     * @param source the image in form of a mat
+     * @return function from a range of rows to its variance
+     */
+    default ToDoubleFunction<Range> createRangeScorer(Mat source) {
+        final double[] rowSums = getRowResponseSums(source);
+        final double[] prefixSums = new double[rowSums.length + 1];
+        for (int y = 0; y < rowSums.length; y++) {
+            prefixSums[y + 1] = prefixSums[y] + rowSums[y];
+        }
+
+        final int width = source.width();
+        return range -> {
+            if (range.empty()) {
+                return 0;
+            }
+            double sum = prefixSums[range.end] - prefixSums[range.start];
+
+            // A row's response depends on its neighbours only, so a 2 row window
+            // has the same border as the range itself.
+            Mat first = source.rowRange(range.start, Math.min(range.start + 2, range.end));
+            sum += getRowResponseSums(first)[0] - rowSums[range.start];
+            first.release();
+            if (range.size() > 1) {
+                Mat last = source.rowRange(range.end - 2, range.end);
+                sum += getRowResponseSums(last)[1] - rowSums[range.end - 1];
+                last.release();
+            }
+
+            return sum / ((double) range.size() * width);
+        };
+    }
+
+}
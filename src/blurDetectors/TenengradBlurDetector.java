@@ -4,39 +4,114 @@ import org.opencv.core.Core;
 import org.opencv.core.Mat;
 import org.opencv.imgproc.Imgproc;
 
+import static org.opencv.core.CvType.CV_32F;
 import static org.opencv.core.CvType.CV_64F;
 
 /**
  * BlurDetector using the tenengrad algorithm.
  */
-public class TenengradBlurDetector implements BlurDetector {
+public class TenengradBlurDetector implements PixelResponseBlurDetector {
+
+    private static final int KERNEL_SIZE = 3;
+    private static final double SOBEL_DELTA = 5;
+
+    /**
+     * Intermediate Mats which are re-used between calls. OpenCV only
+     * re-allocates them when the size of the source changes.
+     */
+    private static final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
 
     /**
      * {@inheritDoc}
      */
     public double getVariance(Mat source) {
-        Mat matGray = new Mat();
-        Imgproc.cvtColor(source, matGray, Imgproc.COLOR_BGR2GRAY);
-        return tenengrad(matGray);
+        Scratch buffers = scratch.get();
+        return tenengrad(toGray(source, buffers), buffers);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public double[] getRowResponseSums(Mat source) {
+        double[] rowSums = new double[source.rows()];
+        if (source.empty()) {
+            return rowSums;
+        }
+
+        Scratch buffers = scratch.get();
+        sobel(toGray(source, buffers), buffers);
+
+        // gx^2 + gy^2 for every pixel, summed per row
+        Core.multiply(buffers.gx, buffers.gx, buffers.gx);
+        Core.multiply(buffers.gy, buffers.gy, buffers.gy);
+        Core.add(buffers.gx, buffers.gy, buffers.gx);
+        Core.reduce(buffers.gx, buffers.rowSums, 1, Core.REDUCE_SUM, CV_64F);
+
+        buffers.rowSums.get(0, 0, rowSums);
+        return rowSums;
+    }
+
+    private Mat toGray(Mat source, Scratch buffers) {
+        if (source.channels() == 1) {
+            return source;
+        }
+        Imgproc.cvtColor(source, buffers.gray, Imgproc.COLOR_BGR2GRAY);
+        return buffers.gray;
+    }
+
+    private void sobel(Mat source, Scratch buffers) {
+        // The gradients of 8-bit images are integers, which float represents exactly
+        Imgproc.Sobel(source, buffers.gx, CV_32F, 1, 0, KERNEL_SIZE, 1, SOBEL_DELTA);
+        Imgproc.Sobel(source, buffers.gy, CV_32F, 0, 1, KERNEL_SIZE, 1, SOBEL_DELTA);
     }
 
     /**
      * Calculates the contrast using the Tenengrad-algorithm.
      *
      * @param source source which the algorithm should be run upon
+     * @param buffers buffers to store the gradients in
+     * @return contrast value
+     */
+    private double tenengrad(Mat source, Scratch buffers) {
+        if (source.empty()) {
+            return 0;
+        }
+
+        sobel(source, buffers);
+
+        // The squared L2-norm is the sum of gx^2, accumulated natively without any
+        // intermediate Mat; mean(gx^2 + gy^2) follows directly.
+        double sum = Core.norm(buffers.gx, Core.NORM_L2SQR) + Core.norm(buffers.gy, Core.NORM_L2SQR);
+        return sum / source.total();
+    }
+
+    /**
+     * Calculates the contrast the original way, allocating new Mats for every
+     * intermediate result. Kept as a reference for tests and benchmarks.
+     *
+     * @param source source which the algorithm should be run upon
      * @return contrast value
      */
-    private double tenengrad(Mat source) {
+    double getVarianceAllocating(Mat source) {
+        Mat matGray = new Mat();
+        Imgproc.cvtColor(source, matGray, Imgproc.COLOR_BGR2GRAY);
+
         Mat gx = new Mat();
         Mat gy = new Mat();
 
-        final int KERNEL_SIZE = 3;
-        Imgproc.Sobel(source, gx, CV_64F, 1, 0, KERNEL_SIZE, 1, 5);
-        Imgproc.Sobel(source, gy, CV_64F, 0, 1, KERNEL_SIZE, 1, 5);
+        Imgproc.Sobel(matGray, gx, CV_64F, 1, 0, KERNEL_SIZE, 1, SOBEL_DELTA);
+        Imgproc.Sobel(matGray, gy, CV_64F, 0, 1, KERNEL_SIZE, 1, SOBEL_DELTA);
 
         Mat FM = new Mat();
         Core.add(gx.mul(gx), gy.mul(gy), FM);
 
         return Core.mean(FM).val[0];
     }
+
+    private static class Scratch {
+        private final Mat gray = new Mat();
+        private final Mat gx = new Mat();
+        private final Mat gy = new Mat();
+        private final Mat rowSums = new Mat();
+    }
 }
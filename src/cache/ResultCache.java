@@ -0,0 +1,303 @@
+package cache;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Content-addressed cache of encoded results. Results are stored on disk, and
+ * optionally in memory, under a key derived from the content of the input file
+ * and the configuration which produced them. Both tiers evict the least
+ * recently used results once their size limit is exceeded.
+ *
+ * The disk tier survives restarts; its recency is kept in the modification
+ * time of the files. Only files named like a key are taken to be results, so
+ * other files in the directory are never evicted. Safe to use from multiple threads.
+ */
+public class ResultCache {
+
+    private static final Logger logger = LogManager.getLogger(ResultCache.class);
+
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Names of the results, the hex digest of their key, see {@link #createKey}.
+     */
+    private static final Pattern KEY_PATTERN = Pattern.compile("[0-9a-f]{64}");
+
+    /**
+     * Names of results being written, by the key and writing thread.
+     */
+    private static final Pattern TEMP_PATTERN = Pattern.compile("[0-9a-f]{64}\\.\\d+" + Pattern.quote(TEMP_SUFFIX));
+
+    private final Path directory;
+    private final long maxDiskBytes;
+    private final long maxMemoryBytes;
+
+    /**
+     * Size of the results on disk, the least recently used first.
+     */
+    private final LinkedHashMap<String, Long> diskEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private long diskBytes = 0;
+
+    /**
+     * Results in memory, the least recently used first.
+     */
+    private final LinkedHashMap<String, byte[]> memoryEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private long memoryBytes = 0;
+
+    /**
+     * Creates a cache, picking up the results already stored in the directory.
+     *
+     * @param directory directory to store results in
+     * @param maxDiskBytes maximum total size of the results on disk
+     * @param maxMemoryBytes maximum total size of the results in memory, 0 to not keep results in memory
+     * @throws IOException if the directory couldn't be read
+     */
+    public ResultCache(Path directory, long maxDiskBytes, long maxMemoryBytes) throws IOException {
+        this.directory = directory;
+        this.maxDiskBytes = maxDiskBytes;
+        this.maxMemoryBytes = maxMemoryBytes;
+
+        Files.createDirectories(directory);
+        List<Path> files;
+        try (Stream<Path> stream = Files.list(directory)) {
+            files = stream.filter(Files::isRegularFile).collect(Collectors.toList());
+        }
+
+        // Restore the recency from the modification times
+        files.sort(Comparator.comparing(ResultCache::getLastModified));
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            if (TEMP_PATTERN.matcher(name).matches()) {
+                // Left behind by an interrupted write
+                Files.deleteIfExists(file);
+                continue;
+            }
+            if (!KEY_PATTERN.matcher(name).matches()) {
+                // Not ours
+                continue;
+            }
+            long size = Files.size(file);
+            diskEntries.put(name, size);
+            diskBytes += size;
+        }
+        synchronized (this) {
+            evictFromDisk();
+        }
+        logger.info("Opened result cache {} with {} results, {} bytes", directory, diskEntries.size(), diskBytes);
+    }
+
+    private static FileTime getLastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Creates the key of the result of processing the given file with the given configuration.
+     * The key changes whenever the content of the file or the configuration changes.
+     *
+     * @param input file which is processed
+     * @param configuration description of everything affecting the result
+     * @return the key
+     * @throws IOException if the file couldn't be read
+     */
+    public static String createKey(Path input, String configuration) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(DIGEST_ALGORITHM + " is always available", e);
+        }
+
+        digest.update(configuration.getBytes(StandardCharsets.UTF_8));
+        // Separates the configuration from the content
+        digest.update((byte) 0);
+
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream in = Files.newInputStream(input)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+
+        StringBuilder key = new StringBuilder();
+        for (byte b : digest.digest()) {
+            key.append(String.format("%02x", b));
+        }
+        return key.toString();
+    }
+
+    /**
+     * @param key key of the result
+     * @return the cached result, or null if not cached. Shared with the cache, hence mustn't be modified.
+     */
+    public byte[] get(String key) {
+        byte[] inMemory;
+        synchronized (this) {
+            // Also marks the result as recently used on disk
+            if (diskEntries.get(key) == null) {
+                return null;
+            }
+            inMemory = memoryEntries.get(key);
+        }
+
+        Path file = directory.resolve(key);
+        if (inMemory != null) {
+            // Keeps the recency on disk for the next start
+            touch(file);
+            return inMemory;
+        }
+
+        byte[] result;
+        try {
+            result = Files.readAllBytes(file);
+            touch(file);
+        } catch (NoSuchFileException e) {
+            // Evicted meanwhile
+            return null;
+        } catch (IOException e) {
+            logger.warn("Failed to read cached result {}", file, e);
+            return null;
+        }
+
+        synchronized (this) {
+            putInMemory(key, result);
+        }
+        return result;
+    }
+
+    private static void touch(Path file) {
+        try {
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (NoSuchFileException e) {
+            // Evicted meanwhile
+        } catch (IOException e) {
+            logger.warn("Failed to mark cached result {} as used", file, e);
+        }
+    }
+
+    /**
+     * Stores a result, evicting the least recently used results if the cache is full.
+     *
+     * @param key key of the result, see {@link #createKey}
+     * @param result result to store
+     * @throws IllegalArgumentException if the key isn't one created by {@link #createKey}
+     */
+    public void put(String key, byte[] result) {
+        if (!KEY_PATTERN.matcher(key).matches()) {
+            throw new IllegalArgumentException("Invalid key " + key);
+        }
+
+        Path file = directory.resolve(key);
+        Path temp = directory.resolve(key + "." + Thread.currentThread().getId() + TEMP_SUFFIX);
+        try {
+            // Written aside, so readers never see a partial result
+            Files.write(temp, result);
+        } catch (IOException e) {
+            logger.warn("Failed to store result {}", file, e);
+            deleteTemp(temp);
+            return;
+        }
+
+        synchronized (this) {
+            // Moved under the lock, so an eviction of the same key can't delete the new file
+            // while it's still counted
+            try {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                logger.warn("Failed to store result {}", file, e);
+                deleteTemp(temp);
+                return;
+            }
+
+            Long previous = diskEntries.put(key, (long) result.length);
+            diskBytes += result.length - (previous == null ? 0 : previous);
+            evictFromDisk();
+            putInMemory(key, result);
+        }
+    }
+
+    private static void deleteTemp(Path temp) {
+        try {
+            Files.deleteIfExists(temp);
+        } catch (IOException ignored) {
+            // Removed on the next start
+        }
+    }
+
+    private void putInMemory(String key, byte[] result) {
+        // The memory tier only holds results which are also on disk
+        if (result.length > maxMemoryBytes || !diskEntries.containsKey(key)) {
+            return;
+        }
+
+        byte[] previous = memoryEntries.put(key, result);
+        memoryBytes += result.length - (previous == null ? 0 : previous.length);
+
+        Iterator<Map.Entry<String, byte[]>> iterator = memoryEntries.entrySet().iterator();
+        while (memoryBytes > maxMemoryBytes && iterator.hasNext()) {
+            memoryBytes -= iterator.next().getValue().length;
+            iterator.remove();
+        }
+    }
+
+    private void evictFromDisk() {
+        Iterator<Map.Entry<String, Long>> iterator = diskEntries.entrySet().iterator();
+        while (diskBytes > maxDiskBytes && iterator.hasNext()) {
+            Map.Entry<String, Long> eldest = iterator.next();
+            try {
+                Files.deleteIfExists(directory.resolve(eldest.getKey()));
+            } catch (IOException e) {
+                logger.warn("Failed to evict cached result {}", eldest.getKey(), e);
+                continue;
+            }
+            diskBytes -= eldest.getValue();
+            iterator.remove();
+
+            byte[] inMemory = memoryEntries.remove(eldest.getKey());
+            if (inMemory != null) {
+                memoryBytes -= inMemory.length;
+            }
+        }
+    }
+
+    /**
+     * @return total size of the results on disk
+     */
+    public synchronized long getDiskBytes() {
+        return diskBytes;
+    }
+
+    /**
+     * @return total size of the results in memory
+     */
+    public synchronized long getMemoryBytes() {
+        return memoryBytes;
+    }
+}
@@ -64,7 +64,9 @@ public class ImageEnhancer {
 
 		if (thresholdType != THRESH_NONE) {
 			// Apply threshold to image
-			modifiedMat = ThresholdApplier.applyThreshold(modifiedMat, threshold, maxval, thresholdType, otsu);
+			Mat thresholded = ThresholdApplier.applyThreshold(modifiedMat, threshold, maxval, thresholdType, otsu);
+			releaseIntermediate(modifiedMat, mat);
+			modifiedMat = thresholded;
 		}
 
 		return modifiedMat;
@@ -107,8 +109,10 @@ public class ImageEnhancer {
 		Imgproc.GaussianBlur(modifiedMat, modifiedMat, new Size(kernelWidth, kernelHeight), sigma);
 
 		// Apply threshold to image
-		modifiedMat = ThresholdApplier.applyAdaptiveThreshold (
+		Mat thresholded = ThresholdApplier.applyAdaptiveThreshold (
 				modifiedMat, maxval, adaptiveMethod, thresholdType, blockSize, c);
+		releaseIntermediate(modifiedMat, mat);
+		modifiedMat = thresholded;
 
 		return modifiedMat;
 	}
@@ -146,7 +150,9 @@ public class ImageEnhancer {
 		Imgproc.GaussianBlur(modifiedMat, modifiedMat, new Size(kernelWidth, kernelHeight), sigma);
 
 		// Apply ranged threshold to image
-		modifiedMat = ThresholdApplier.applyRangedThreshold(mat, low_b, low_g, low_r, high_b, high_g, high_r);
+		Mat thresholded = ThresholdApplier.applyRangedThreshold(mat, low_b, low_g, low_r, high_b, high_g, high_r);
+		releaseIntermediate(modifiedMat, mat);
+		modifiedMat = thresholded;
 
 		return modifiedMat;
 	}
@@ -198,7 +204,9 @@ public class ImageEnhancer {
 
 		if (thresholdType != THRESH_NONE) {
 			// Apply threshold to image
-			modifiedMat = ThresholdApplier.applyThreshold(modifiedMat, threshold, maxval, thresholdType, otsu);
+			Mat thresholded = ThresholdApplier.applyThreshold(modifiedMat, threshold, maxval, thresholdType, otsu);
+			releaseIntermediate(modifiedMat, mat);
+			modifiedMat = thresholded;
 		}
 
 		return modifiedMat;
@@ -238,8 +246,10 @@ public class ImageEnhancer {
 		Imgproc.medianBlur(modifiedMat, modifiedMat, kernelSize);
 
 		// Apply threshold to image
-		modifiedMat = ThresholdApplier.applyAdaptiveThreshold (
+		Mat thresholded = ThresholdApplier.applyAdaptiveThreshold (
 				modifiedMat, maxval, adaptiveMethod, thresholdType, blockSize, c);
+		releaseIntermediate(modifiedMat, mat);
+		modifiedMat = thresholded;
 
 		return modifiedMat;
 	}
@@ -274,7 +284,9 @@ public class ImageEnhancer {
 		Imgproc.medianBlur(modifiedMat, modifiedMat, kernelSize);
 
 		// Apply ranged threshold to image
-		modifiedMat = ThresholdApplier.applyRangedThreshold(mat, low_b, low_g, low_r, high_b, high_g, high_r);
+		Mat thresholded = ThresholdApplier.applyRangedThreshold(mat, low_b, low_g, low_r, high_b, high_g, high_r);
+		releaseIntermediate(modifiedMat, mat);
+		modifiedMat = thresholded;
 
 		return modifiedMat;
 	}
@@ -322,7 +334,9 @@ public class ImageEnhancer {
 
 		if (thresholdType != THRESH_NONE) {
 			// Apply threshold to image
-			modifiedMat = ThresholdApplier.applyThreshold(modifiedMat, threshold, maxval, thresholdType, otsu);
+			Mat thresholded = ThresholdApplier.applyThreshold(modifiedMat, threshold, maxval, thresholdType, otsu);
+			releaseIntermediate(modifiedMat, mat);
+			modifiedMat = thresholded;
 		}
 
 		return modifiedMat;
@@ -358,8 +372,10 @@ public class ImageEnhancer {
 		Imgproc.cvtColor(mat, modifiedMat, Imgproc.COLOR_BGR2GRAY);
 
 		// Apply threshold to image
-		modifiedMat = ThresholdApplier.applyAdaptiveThreshold(
+		Mat thresholded = ThresholdApplier.applyAdaptiveThreshold(
 				modifiedMat, maxval, adaptiveMethod, thresholdType, blockSize, c);
+		releaseIntermediate(modifiedMat, mat);
+		modifiedMat = thresholded;
 
 		return modifiedMat;
 	}
@@ -390,8 +406,23 @@ public class ImageEnhancer {
 		}
 
 		// Apply ranged threshold to image
-		modifiedMat = ThresholdApplier.applyRangedThreshold(mat, low_b, low_g, low_r, high_b, high_g, high_r);
+		Mat thresholded = ThresholdApplier.applyRangedThreshold(mat, low_b, low_g, low_r, high_b, high_g, high_r);
+		releaseIntermediate(modifiedMat, mat);
+		modifiedMat = thresholded;
 
 		return modifiedMat;
 	}
+
+	/**
+	 * Releases an intermediate matrix once it has been replaced by the next step,
+	 * unless it is the matrix given by the caller.
+	 *
+	 * @param intermediate The replaced intermediate matrix.
+	 * @param mat The matrix given by the caller.
+	 */
+	private static void releaseIntermediate(Mat intermediate, Mat mat) {
+		if (intermediate != mat) {
+			intermediate.release();
+		}
+	}
 }
@@ -0,0 +1,83 @@
+package blurDetectors;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.opencv.core.Mat;
+import org.openjdk.jmh.annotations.*;
+import utilities.BenchmarkResources;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+/**
+ * Compares the cost of the blur detectors when scoring the frames of a video.
+ *
+ * Before measuring, the rank correlation (Spearman) between each detector
+ * and Tenengrad is logged, showing how well a cheaper detector agrees on
+ * which frames are the best.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class BlurDetectorBenchmark {
+
+    private static final Logger logger = LogManager.getLogger(BlurDetectorBenchmark.class);
+
+    private static final int NUM_FRAMES = 30;
+
+    @Param({"TENENGRAD", "LAPLACIAN_VARIANCE", "BRENNER", "MODIFIED_LAPLACIAN"})
+    public BlurDetectorType type;
+
+    private BlurDetector blurDetector;
+    private List<Mat> frames;
+
+    @Setup
+    public void setUp() {
+        BenchmarkResources.loadNativeLibrary();
+        blurDetector = type.create();
+        frames = BenchmarkResources.getFrames(NUM_FRAMES);
+
+        double[] reference = score(BlurDetectorType.TENENGRAD.create());
+        double[] scores = score(blurDetector);
+        logger.info("Rank correlation between {} and TENENGRAD: {}",
+                type, String.format("%.3f", rankCorrelation(reference, scores)));
+    }
+
+    @Benchmark
+    public double[] scoreFrames() {
+        return score(blurDetector);
+    }
+
+    private double[] score(BlurDetector detector) {
+        return frames.stream().mapToDouble(detector::getVariance).toArray();
+    }
+
+    private static double rankCorrelation(double[] a, double[] b) {
+        double[] rankA = ranks(a);
+        double[] rankB = ranks(b);
+        double n = a.length;
+
+        double squaredDifferences = 0;
+        for (int i = 0; i < a.length; i++) {
+            squaredDifferences += Math.pow(rankA[i] - rankB[i], 2);
+        }
+        return 1 - 6 * squaredDifferences / (n * (n * n - 1));
+    }
+
+    private static double[] ranks(double[] values) {
+        Integer[] order = IntStream.range(0, values.length).boxed().toArray(Integer[]::new);
+        Arrays.sort(order, Comparator.comparingDouble(i -> values[i]));
+
+        double[] ranks = new double[values.length];
+        for (int rank = 0; rank < order.length; rank++) {
+            ranks[order[rank]] = rank;
+        }
+        return ranks;
+    }
+}
@@ -0,0 +1,54 @@
+package blurDetectors;
+
+import org.opencv.core.Mat;
+import org.openjdk.jmh.annotations.*;
+import utilities.BenchmarkResources;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the Tenengrad detector using scratch buffers with the original
+ * implementation, which allocates every intermediate Mat. Both are measured
+ * on a whole frame, as in frame selection, and on a section of a frame,
+ * as when merging receipts.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TenengradBlurDetectorBenchmark {
+
+    private TenengradBlurDetector blurDetector;
+    private Mat frame;
+    private Mat section;
+
+    @Setup
+    public void setUp() {
+        BenchmarkResources.loadNativeLibrary();
+        blurDetector = new TenengradBlurDetector();
+        frame = BenchmarkResources.getFrames(1).get(0);
+        section = frame.rowRange(0, frame.rows() / 20);
+    }
+
+    @Benchmark
+    public double frameScratch() {
+        return blurDetector.getVariance(frame);
+    }
+
+    @Benchmark
+    public double frameAllocating() {
+        return blurDetector.getVarianceAllocating(frame);
+    }
+
+    @Benchmark
+    public double sectionScratch() {
+        return blurDetector.getVariance(section);
+    }
+
+    @Benchmark
+    public double sectionAllocating() {
+        return blurDetector.getVarianceAllocating(section);
+    }
+}
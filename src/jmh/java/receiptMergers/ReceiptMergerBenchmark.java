@@ -0,0 +1,54 @@
+package receiptMergers;
+
+import blurDetectors.BlurDetectorType;
+import org.opencv.core.Mat;
+import org.openjdk.jmh.annotations.*;
+import utilities.BenchmarkResources;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures merging the aligned receipts of a video into one super receipt.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ReceiptMergerBenchmark {
+
+    @Param({"TENENGRAD", "BRENNER"})
+    public BlurDetectorType blurDetector;
+
+    private ReceiptMerger receiptMerger;
+    private List<Mat> receipts;
+    private Mat merged;
+
+    @Setup
+    public void setUp() {
+        BenchmarkResources.loadNativeLibrary();
+        receiptMerger = new ReceiptMerger(false, blurDetector.create());
+        receipts = BenchmarkResources.getAlignedReceipts(30);
+    }
+
+    @Benchmark
+    public Mat createImageRows() {
+        merged = receiptMerger.createImageRows(receipts);
+        return merged;
+    }
+
+    @TearDown(Level.Invocation)
+    public void releaseMerged() {
+        if (merged != null) {
+            merged.release();
+            merged = null;
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        BenchmarkResources.release(receipts);
+    }
+}
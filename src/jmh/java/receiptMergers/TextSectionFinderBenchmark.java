@@ -0,0 +1,44 @@
+package receiptMergers;
+
+import org.opencv.core.Mat;
+import org.openjdk.jmh.annotations.*;
+import utilities.BenchmarkResources;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures finding the text sections of an extracted receipt.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TextSectionFinderBenchmark {
+
+    private static final int SECTION_PADDING = 8;
+
+    private SectionFinder sectionFinder;
+    private Mat receipt;
+
+    @Setup
+    public void setUp() {
+        BenchmarkResources.loadNativeLibrary();
+        sectionFinder = new TextSectionFinder(SECTION_PADDING);
+        List<Mat> receipts = BenchmarkResources.getAlignedReceipts(1);
+        receipt = receipts.remove(0);
+        BenchmarkResources.release(receipts);
+    }
+
+    @TearDown
+    public void tearDown() {
+        receipt.release();
+    }
+
+    @Benchmark
+    public List<Section> findSections() {
+        return sectionFinder.findSections(receipt);
+    }
+}
@@ -0,0 +1,125 @@
+package utilities;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+
+import java.net.URISyntaxException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Test data shared by the benchmarks. Loading this class loads the native
+ * OpenCV library, which hence happens once per forked benchmark JVM.
+ */
+public final class BenchmarkResources {
+
+    public static final String RECEIPT_VIDEO = "receipt-video.mp4";
+
+    static {
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+    }
+
+    private BenchmarkResources() {
+    }
+
+    /**
+     * Ensures the native OpenCV library is loaded. Call before using any OpenCV class.
+     */
+    public static void loadNativeLibrary() {
+        // Loaded by the static initializer
+    }
+
+    /**
+     * @param video name of a video in the test resources
+     * @return file system path to the video
+     */
+    public static String getVideoPath(String video) {
+        try {
+            return Paths.get(BenchmarkResources.class.getResource("/videos/" + video).toURI()).toString();
+        } catch (URISyntaxException e) {
+            throw new IllegalArgumentException("Invalid video resource " + video, e);
+        }
+    }
+
+    /**
+     * Splits the receipt video into frames, the same way as the extraction pipeline.
+     *
+     * @param requiredFrames number of frames to split the video into
+     * @return frames in portrait orientation
+     */
+    public static List<Mat> getFrames(int requiredFrames) {
+        List<Mat> frames = VideoSplitter.getFrames(getVideoPath(RECEIPT_VIDEO), requiredFrames);
+        for (Mat frame : frames) {
+            if (frame.width() > frame.height()) {
+                Mat transposed = frame.t();
+                Core.flip(transposed, frame, Core.ROTATE_90_COUNTERCLOCKWISE);
+                transposed.release();
+            }
+        }
+        return frames;
+    }
+
+    /**
+     * Extracts the receipts from the frames of the receipt video, without aligning them.
+     *
+     * @param requiredFrames number of frames to split the video into
+     * @return receipts from all frames where extraction succeeded
+     */
+    public static List<Mat> getReceipts(int requiredFrames) {
+        EdgeDetector edgeDetector = new EdgeDetector();
+        List<Mat> receipts = new ArrayList<>();
+        for (Mat frame : getFrames(requiredFrames)) {
+            Mat receipt = edgeDetector.extractBiggestObject(frame, false);
+            frame.release();
+            if (receipt != null) {
+                receipts.add(receipt);
+            }
+        }
+
+        if (receipts.isEmpty()) {
+            throw new IllegalStateException("Failed to extract any receipt from " + RECEIPT_VIDEO);
+        }
+        return receipts;
+    }
+
+    /**
+     * Extracts the receipts from the frames of the receipt video, aligned
+     * after the first receipt the same way as the extraction pipeline.
+     *
+     * @param requiredFrames number of frames to split the video into
+     * @return aligned receipts from all frames where extraction and alignment succeeded
+     */
+    public static List<Mat> getAlignedReceipts(int requiredFrames) {
+        ReceiptAligner receiptAligner = new ReceiptAligner(AlignmentMode.PYRAMID);
+        List<Mat> receipts = getReceipts(requiredFrames);
+        ReceiptAligner.Reference reference = receiptAligner.prepareReference(receipts.get(0));
+
+        List<Mat> aligned = new ArrayList<>();
+        for (Mat receipt : receipts) {
+            Mat alignedReceipt = receiptAligner.align(reference, receipt);
+            if (alignedReceipt != null) {
+                aligned.add(alignedReceipt);
+            }
+        }
+        reference.release();
+        release(receipts);
+        return aligned;
+    }
+
+    /**
+     * Releases the given Mats, e.g. the results of a benchmark invocation.
+     *
+     * @param mats Mats to release, which may be null
+     */
+    public static void release(List<Mat> mats) {
+        if (mats == null) {
+            return;
+        }
+        for (Mat mat : mats) {
+            if (mat != null) {
+                mat.release();
+            }
+        }
+    }
+}
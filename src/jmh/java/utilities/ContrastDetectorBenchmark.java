@@ -0,0 +1,39 @@
+package utilities;
+
+import org.opencv.core.Mat;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the per-frame cost of computing the contrast of a video frame,
+ * comparing the bulk-read implementation with the per-pixel reference.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ContrastDetectorBenchmark {
+
+    private ContrastDetector contrastDetector;
+    private Mat frame;
+
+    @Setup
+    public void setUp() {
+        BenchmarkResources.loadNativeLibrary();
+        contrastDetector = new ContrastDetector();
+        frame = BenchmarkResources.getFrames(1).get(0);
+    }
+
+    @Benchmark
+    public double calculateContrast() {
+        return contrastDetector.calculateContrast(frame);
+    }
+
+    @Benchmark
+    public double calculateContrastPerPixel() {
+        return contrastDetector.calculateContrastPerPixel(frame);
+    }
+}
@@ -0,0 +1,54 @@
+package utilities;
+
+import org.opencv.core.Mat;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures extracting the receipt from a single video frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class EdgeDetectorBenchmark {
+
+    @Param({"false", "true"})
+    public boolean detectGlare;
+
+    @Param({"FULL_RESOLUTION", "MULTI_RESOLUTION"})
+    public DetectionMode mode;
+
+    private EdgeDetector edgeDetector;
+    private Mat frame;
+    private Mat receipt;
+
+    @Setup
+    public void setUp() {
+        BenchmarkResources.loadNativeLibrary();
+        edgeDetector = new EdgeDetector(mode);
+        frame = BenchmarkResources.getFrames(1).get(0);
+    }
+
+    @Benchmark
+    public Mat extractBiggestObject() {
+        receipt = edgeDetector.extractBiggestObject(frame, detectGlare);
+        return receipt;
+    }
+
+    @TearDown(Level.Invocation)
+    public void releaseReceipt() {
+        if (receipt != null) {
+            receipt.release();
+            receipt = null;
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        frame.release();
+    }
+}
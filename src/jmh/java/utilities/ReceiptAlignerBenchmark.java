@@ -0,0 +1,69 @@
+package utilities;
+
+import org.opencv.core.Mat;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures aligning one extracted receipt after a reference receipt, both
+ * when detecting the features of the reference every time and when they
+ * are prepared once.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ReceiptAlignerBenchmark {
+
+    @Param({"FULL", "PYRAMID"})
+    public AlignmentMode mode;
+
+    private ReceiptAligner receiptAligner;
+    private Mat reference;
+    private ReceiptAligner.Reference preparedReference;
+    private Mat receipt;
+    private Mat aligned;
+
+    @Setup
+    public void setUp() {
+        BenchmarkResources.loadNativeLibrary();
+        receiptAligner = new ReceiptAligner(mode);
+
+        List<Mat> receipts = BenchmarkResources.getReceipts(10);
+        reference = receipts.remove(0);
+        receipt = receipts.remove(receipts.size() - 1);
+        BenchmarkResources.release(receipts);
+        preparedReference = receiptAligner.prepareReference(reference);
+    }
+
+    @Benchmark
+    public Mat align() {
+        aligned = receiptAligner.align(reference, receipt);
+        return aligned;
+    }
+
+    @Benchmark
+    public Mat alignPrepared() {
+        aligned = receiptAligner.align(preparedReference, receipt);
+        return aligned;
+    }
+
+    @TearDown(Level.Invocation)
+    public void releaseAligned() {
+        if (aligned != null) {
+            aligned.release();
+            aligned = null;
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        preparedReference.release();
+        reference.release();
+        receipt.release();
+    }
+}
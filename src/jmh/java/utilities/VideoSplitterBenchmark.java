@@ -0,0 +1,52 @@
+package utilities;
+
+import org.opencv.core.Mat;
+import org.opencv.videoio.VideoCapture;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares seeking to every sampled frame with decoding the video sequentially.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class VideoSplitterBenchmark {
+
+    @Param({BenchmarkResources.RECEIPT_VIDEO})
+    public String video;
+
+    @Param({"SEEK", "SEQUENTIAL"})
+    public FrameSamplingMode mode;
+
+    @Param({"10", "30"})
+    public int requiredFrames;
+
+    private String path;
+    private List<Mat> frames;
+
+    @Setup
+    public void setUp() {
+        BenchmarkResources.loadNativeLibrary();
+        path = BenchmarkResources.getVideoPath(video);
+    }
+
+    @Benchmark
+    public List<Mat> getFrames() {
+        VideoCapture capture = new VideoCapture(path);
+        frames = VideoSplitter.getFrames(capture, requiredFrames, mode);
+        capture.release();
+        return frames;
+    }
+
+    @TearDown(Level.Invocation)
+    public void releaseFrames() {
+        BenchmarkResources.release(frames);
+        frames = null;
+    }
+}
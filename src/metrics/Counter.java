@@ -0,0 +1,59 @@
+package metrics;
+
+/**
+ * Events of the receipt pipeline which are counted by {@link PipelineMetrics}.
+ */
+public enum Counter {
+    /**
+     * Frames decoded from the video.
+     */
+    FRAMES_DECODED("frames_decoded"),
+
+    /**
+     * Frames in which no receipt could be found.
+     */
+    FAILED_EXTRACTIONS("failed_extractions"),
+
+    /**
+     * Receipts which couldn't be aligned with the reference.
+     */
+    FAILED_ALIGNMENTS("failed_alignments"),
+
+    /**
+     * Contours which required the smart polygon reduction to be reduced to four corners.
+     */
+    SMART_REDUCTION_FALLBACKS("smart_reduction_fallbacks"),
+
+    /**
+     * Bytes of native memory allocated for the frames and receipts of the pipeline.
+     */
+    MAT_BYTES_ALLOCATED("mat_bytes_allocated"),
+
+    /**
+     * Intermediate Mats which reused a pooled buffer instead of allocating a new one.
+     */
+    MATS_REUSED("mats_reused"),
+
+    /**
+     * Results which were found in the result cache, without processing the video.
+     */
+    CACHE_HITS("cache_hits"),
+
+    /**
+     * Results which weren't found in the result cache.
+     */
+    CACHE_MISSES("cache_misses");
+
+    private final String metricName;
+
+    Counter(String metricName) {
+        this.metricName = metricName;
+    }
+
+    /**
+     * @return name of the counter in exported metrics
+     */
+    public String getMetricName() {
+        return metricName;
+    }
+}
@@ -0,0 +1,134 @@
+package metrics;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Exposes the metrics accumulated over all jobs as read-only attributes of an
+ * MBean on the platform MBean server, e.g. "decode.nanos" or "failed_extractions".
+ */
+public class JmxMetricsRegistry implements MetricsRegistry, DynamicMBean {
+
+    public static final String OBJECT_NAME = "receipts:type=PipelineMetrics";
+
+    private static final String JOBS = "jobs";
+    private static final String NANOS_SUFFIX = ".nanos";
+    private static final String CALLS_SUFFIX = ".calls";
+
+    private final PipelineMetrics totals = new PipelineMetrics();
+    private final LongAdder jobs = new LongAdder();
+    private final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    private final ObjectName objectName;
+
+    /**
+     * Creates the registry, and registers it on the platform MBean server.
+     *
+     * @throws IllegalStateException if a registry already is registered
+     */
+    public JmxMetricsRegistry() {
+        try {
+            objectName = new ObjectName(OBJECT_NAME);
+            server.registerMBean(this, objectName);
+        } catch (JMException e) {
+            throw new IllegalStateException("Failed to register " + OBJECT_NAME, e);
+        }
+    }
+
+    @Override
+    public void report(MetricsReport report) {
+        totals.add(report);
+        jobs.increment();
+    }
+
+    @Override
+    public void close() {
+        try {
+            server.unregisterMBean(objectName);
+        } catch (JMException e) {
+            throw new IllegalStateException("Failed to unregister " + OBJECT_NAME, e);
+        }
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        if (attribute.equals(JOBS)) {
+            return jobs.sum();
+        }
+
+        MetricsReport report = totals.report();
+        for (Stage stage : Stage.values()) {
+            if (attribute.equals(stage.getMetricName() + NANOS_SUFFIX)) {
+                return report.getNanos(stage);
+            } else if (attribute.equals(stage.getMetricName() + CALLS_SUFFIX)) {
+                return report.getCalls(stage);
+            }
+        }
+        for (Counter counter : Counter.values()) {
+            if (attribute.equals(counter.getMetricName())) {
+                return report.getCount(counter);
+            }
+        }
+        throw new AttributeNotFoundException(attribute);
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            try {
+                list.add(new Attribute(attribute, getAttribute(attribute)));
+            } catch (AttributeNotFoundException e) {
+                // Unknown attributes are left out, as specified by DynamicMBean
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metrics are read-only");
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) {
+        throw new UnsupportedOperationException(actionName);
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attributes = new ArrayList<>();
+        attributes.add(createAttributeInfo(JOBS, "Finished jobs"));
+        for (Stage stage : Stage.values()) {
+            attributes.add(createAttributeInfo(stage.getMetricName() + NANOS_SUFFIX,
+                    "Nanoseconds spent in stage " + stage.getMetricName()));
+            attributes.add(createAttributeInfo(stage.getMetricName() + CALLS_SUFFIX,
+                    "Calls of stage " + stage.getMetricName()));
+        }
+        for (Counter counter : Counter.values()) {
+            attributes.add(createAttributeInfo(counter.getMetricName(), "Total " + counter.getMetricName()));
+        }
+
+        return new MBeanInfo(getClass().getName(), "Receipt pipeline metrics",
+                attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null, null, null);
+    }
+
+    private static MBeanAttributeInfo createAttributeInfo(String name, String description) {
+        return new MBeanAttributeInfo(name, long.class.getName(), description, true, false, false);
+    }
+}
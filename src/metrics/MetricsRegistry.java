@@ -0,0 +1,64 @@
+package metrics;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.util.Locale;
+
+/**
+ * Receives the report of every finished pipeline job, and exposes the
+ * accumulated metrics to a monitoring system.
+ */
+public interface MetricsRegistry extends AutoCloseable {
+
+    /**
+     * Registry which discards all reports.
+     */
+    MetricsRegistry NONE = report -> { };
+
+    /**
+     * Port the Prometheus endpoint listens on, unless another port is specified.
+     */
+    int DEFAULT_PROMETHEUS_PORT = 9400;
+
+    /**
+     * Adds the report of a finished job to the registry.
+     *
+     * @param report report of the job
+     */
+    void report(MetricsReport report);
+
+    /**
+     * Stops exposing the metrics.
+     */
+    @Override
+    default void close() {
+    }
+
+    /**
+     * Creates a registry by its name: "none", "jmx", or "prometheus" optionally
+     * followed by the port to listen on, e.g. "prometheus:9400".
+     *
+     * @param name name of the registry, case insensitive
+     * @return a new registry
+     * @throws IllegalArgumentException if no registry matches the name
+     */
+    static MetricsRegistry fromName(String name) {
+        String[] parts = name.trim().toLowerCase(Locale.ROOT).split(":", 2);
+        switch (parts[0]) {
+            case "none":
+                return NONE;
+            case "jmx":
+                return new JmxMetricsRegistry();
+            case "prometheus":
+                int port = parts.length > 1 ? Integer.parseInt(parts[1]) : DEFAULT_PROMETHEUS_PORT;
+                try {
+                    return new PrometheusMetricsRegistry(new InetSocketAddress("localhost", port));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            default:
+                throw new IllegalArgumentException("Unknown metrics registry " + name);
+        }
+    }
+}
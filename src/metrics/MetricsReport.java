@@ -0,0 +1,64 @@
+package metrics;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Immutable snapshot of the metrics of a pipeline job.
+ */
+public class MetricsReport {
+
+    private final long elapsedNanos;
+    private final long[] stageNanos;
+    private final long[] stageCalls;
+    private final long[] counters;
+
+    MetricsReport(long elapsedNanos, long[] stageNanos, long[] stageCalls, long[] counters) {
+        this.elapsedNanos = elapsedNanos;
+        this.stageNanos = stageNanos;
+        this.stageCalls = stageCalls;
+        this.counters = counters;
+    }
+
+    /**
+     * @return wall clock time from the creation of the metrics until this report
+     */
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * @param stage stage of the pipeline
+     * @return total time spent in the stage, summed over all threads
+     */
+    public long getNanos(Stage stage) {
+        return stageNanos[stage.ordinal()];
+    }
+
+    /**
+     * @param stage stage of the pipeline
+     * @return number of times the stage was run
+     */
+    public long getCalls(Stage stage) {
+        return stageCalls[stage.ordinal()];
+    }
+
+    public long getCount(Counter counter) {
+        return counters[counter.ordinal()];
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(String.format("elapsed %d ms", TimeUnit.NANOSECONDS.toMillis(elapsedNanos)));
+        for (Stage stage : Stage.values()) {
+            if (getCalls(stage) > 0) {
+                builder.append(String.format(", %s %d ms (%d calls)", stage.getMetricName(),
+                        TimeUnit.NANOSECONDS.toMillis(getNanos(stage)), getCalls(stage)));
+            }
+        }
+        for (Counter counter : Counter.values()) {
+            builder.append(String.format(", %s %d", counter.getMetricName(), getCount(counter)));
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,223 @@
+package metrics;
+
+import org.opencv.core.Mat;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Collects the time spent in each {@link Stage} and the {@link Counter}s of one
+ * pipeline job. Safe to record into from multiple threads.
+ *
+ * The pipeline records into the metrics bound to the current thread, see
+ * {@link #current()}. A job binds its metrics with {@link #call(Supplier)}, and
+ * tasks it hands to other threads have to bind them again. When no metrics are
+ * bound, nothing is recorded.
+ */
+public class PipelineMetrics {
+
+    private static final ThreadLocal<PipelineMetrics> bound = new ThreadLocal<>();
+
+    /**
+     * Metrics which ignores everything recorded into it.
+     */
+    private static final PipelineMetrics DISABLED = new PipelineMetrics(false);
+
+    private final boolean enabled;
+    private final long startNanos = System.nanoTime();
+    private final LongAdder[] stageNanos = createAdders(Stage.values().length);
+    private final LongAdder[] stageCalls = createAdders(Stage.values().length);
+    private final LongAdder[] counters = createAdders(Counter.values().length);
+
+    /**
+     * Mats handed over from one stage to another, which should be released eventually.
+     */
+    private final Queue<KeptMat> keptMats = new ConcurrentLinkedQueue<>();
+
+    public PipelineMetrics() {
+        this(true);
+    }
+
+    private PipelineMetrics(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    private static LongAdder[] createAdders(int size) {
+        LongAdder[] adders = new LongAdder[size];
+        for (int i = 0; i < size; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    /**
+     * @return the metrics bound to the current thread, or metrics which records nothing if none are bound
+     */
+    public static PipelineMetrics current() {
+        PipelineMetrics metrics = bound.get();
+        return metrics == null ? DISABLED : metrics;
+    }
+
+    /**
+     * Runs the task with these metrics bound to the current thread.
+     *
+     * @param task task to run
+     * @return the result of the task
+     */
+    public <T> T call(Supplier<T> task) {
+        PipelineMetrics previous = bound.get();
+        bound.set(this);
+        try {
+            return task.get();
+        } finally {
+            if (previous == null) {
+                bound.remove();
+            } else {
+                bound.set(previous);
+            }
+        }
+    }
+
+    /**
+     * Runs the task, recording its duration as part of the given stage.
+     *
+     * @param stage stage the task belongs to
+     * @param task task to run
+     * @return the result of the task
+     */
+    public <T> T time(Stage stage, Supplier<T> task) {
+        long start = System.nanoTime();
+        try {
+            return task.get();
+        } finally {
+            record(stage, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Runs the task, recording its duration as part of the given stage.
+     *
+     * @param stage stage the task belongs to
+     * @param task task to run
+     */
+    public void time(Stage stage, Runnable task) {
+        long start = System.nanoTime();
+        try {
+            task.run();
+        } finally {
+            record(stage, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Records one call of the given stage.
+     *
+     * @param stage stage which was run
+     * @param nanos duration of the call in nanoseconds
+     */
+    public void record(Stage stage, long nanos) {
+        if (!enabled) {
+            return;
+        }
+        stageNanos[stage.ordinal()].add(nanos);
+        stageCalls[stage.ordinal()].increment();
+    }
+
+    public void increment(Counter counter) {
+        add(counter, 1);
+    }
+
+    public void add(Counter counter, long value) {
+        if (!enabled) {
+            return;
+        }
+        counters[counter.ordinal()].add(value);
+    }
+
+    /**
+     * Counts the native memory of the given Mat as allocated by the pipeline.
+     *
+     * @param mat newly allocated Mat, may be null
+     */
+    public void trackAllocation(Mat mat) {
+        if (mat != null) {
+            add(Counter.MAT_BYTES_ALLOCATED, mat.total() * mat.elemSize());
+        }
+    }
+
+    /**
+     * Records a Mat which the given stage handed over to its caller, to be able to
+     * detect if it's never released. Holds on to the Mat until these metrics are discarded.
+     *
+     * @param stage stage which created the Mat
+     * @param mat the kept Mat
+     */
+    public void trackKeptMat(Stage stage, Mat mat) {
+        if (enabled) {
+            keptMats.add(new KeptMat(stage, mat));
+        }
+    }
+
+    /**
+     * Finds the tracked Mats which still hold native memory. Once the job is done,
+     * these are the leaks.
+     *
+     * @return number of unreleased Mats by the stage which created them
+     * @see #trackKeptMat(Stage, Mat)
+     */
+    public Map<Stage, Integer> findUnreleasedMats() {
+        Map<Stage, Integer> unreleased = new EnumMap<>(Stage.class);
+        for (KeptMat kept : keptMats) {
+            if (kept.mat.dataAddr() != 0) {
+                unreleased.merge(kept.stage, 1, Integer::sum);
+            }
+        }
+        return unreleased;
+    }
+
+    /**
+     * Adds everything recorded in the given report to these metrics.
+     *
+     * @param report report to add
+     */
+    void add(MetricsReport report) {
+        for (Stage stage : Stage.values()) {
+            stageNanos[stage.ordinal()].add(report.getNanos(stage));
+            stageCalls[stage.ordinal()].add(report.getCalls(stage));
+        }
+        for (Counter counter : Counter.values()) {
+            counters[counter.ordinal()].add(report.getCount(counter));
+        }
+    }
+
+    /**
+     * @return a snapshot of everything recorded so far
+     */
+    public MetricsReport report() {
+        return new MetricsReport(
+                System.nanoTime() - startNanos, sum(stageNanos), sum(stageCalls), sum(counters)
+        );
+    }
+
+    private static long[] sum(LongAdder[] adders) {
+        long[] sums = new long[adders.length];
+        for (int i = 0; i < adders.length; i++) {
+            sums[i] = adders[i].sum();
+        }
+        return sums;
+    }
+
+    private static class KeptMat {
+        private final Stage stage;
+        private final Mat mat;
+
+        KeptMat(Stage stage, Mat mat) {
+            this.stage = stage;
+            this.mat = mat;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package metrics;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Exposes the metrics accumulated over all jobs in the Prometheus text format,
+ * served on "/metrics" of a local HTTP endpoint.
+ */
+public class PrometheusMetricsRegistry implements MetricsRegistry {
+
+    static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    private static final String PATH = "/metrics";
+    private static final String PREFIX = "receipt_";
+    private static final double NANOS_PER_SECOND = 1e9;
+
+    private final PipelineMetrics totals = new PipelineMetrics();
+    private final LongAdder jobs = new LongAdder();
+    private final HttpServer server;
+
+    /**
+     * Creates a registry which isn't exposed over HTTP, see {@link #scrape()}.
+     */
+    public PrometheusMetricsRegistry() {
+        server = null;
+    }
+
+    /**
+     * Creates the registry, and starts serving the metrics.
+     *
+     * @param address address to listen on
+     * @throws IOException if the address couldn't be bound
+     */
+    public PrometheusMetricsRegistry(InetSocketAddress address) throws IOException {
+        server = HttpServer.create(address, 0);
+        server.createContext(PATH, this::handle);
+        server.start();
+    }
+
+    @Override
+    public void report(MetricsReport report) {
+        totals.add(report);
+        jobs.increment();
+    }
+
+    @Override
+    public void close() {
+        if (server != null) {
+            server.stop(0);
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    /**
+     * @return the accumulated metrics in the Prometheus text format
+     */
+    public String scrape() {
+        MetricsReport report = totals.report();
+        StringBuilder builder = new StringBuilder();
+
+        writeHeader(builder, "jobs_total", "counter", "Finished jobs.");
+        writeSample(builder, "jobs_total", "", jobs.sum());
+
+        writeHeader(builder, "stage_seconds_total", "counter", "Time spent in each stage, summed over all threads.");
+        for (Stage stage : Stage.values()) {
+            writeSample(builder, "stage_seconds_total", stageLabel(stage), report.getNanos(stage) / NANOS_PER_SECOND);
+        }
+
+        writeHeader(builder, "stage_calls_total", "counter", "Calls of each stage.");
+        for (Stage stage : Stage.values()) {
+            writeSample(builder, "stage_calls_total", stageLabel(stage), report.getCalls(stage));
+        }
+
+        for (Counter counter : Counter.values()) {
+            String name = counter.getMetricName() + "_total";
+            writeHeader(builder, name, "counter", "Total " + counter.getMetricName().replace('_', ' ') + ".");
+            writeSample(builder, name, "", report.getCount(counter));
+        }
+        return builder.toString();
+    }
+
+    private static String stageLabel(Stage stage) {
+        return "{stage=\"" + stage.getMetricName() + "\"}";
+    }
+
+    private static void writeHeader(StringBuilder builder, String name, String type, String help) {
+        builder.append("# HELP ").append(PREFIX).append(name).append(' ').append(help).append('\n');
+        builder.append("# TYPE ").append(PREFIX).append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void writeSample(StringBuilder builder, String name, String labels, double value) {
+        builder.append(PREFIX).append(name).append(labels).append(' ');
+        if (value == Math.rint(value)) {
+            builder.append((long) value);
+        } else {
+            builder.append(value);
+        }
+        builder.append('\n');
+    }
+}
@@ -0,0 +1,60 @@
+package metrics;
+
+/**
+ * Stages of the receipt pipeline which are timed by {@link PipelineMetrics}.
+ */
+public enum Stage {
+    /**
+     * Decoding and downscaling frames of the video.
+     */
+    DECODE("decode"),
+
+    /**
+     * Scoring frames by their sharpness, to select the best frames.
+     */
+    BLUR_SCORING("blur_scoring"),
+
+    /**
+     * Finding the receipt in a frame and extracting it, including
+     * {@link #POLYGON_REDUCTION}.
+     */
+    EDGE_DETECTION("edge_detection"),
+
+    /**
+     * Reducing the contour of the receipt to its four corners.
+     */
+    POLYGON_REDUCTION("polygon_reduction"),
+
+    /**
+     * Aligning the extracted receipts after the reference receipt.
+     */
+    ALIGNMENT("alignment"),
+
+    /**
+     * Splitting the reference receipt into sections of text.
+     */
+    SECTION_FINDING("section_finding"),
+
+    /**
+     * Scoring the sections of every receipt, and merging the best sections.
+     */
+    MERGE("merge"),
+
+    /**
+     * Encoding and writing the result.
+     */
+    ENCODE("encode");
+
+    private final String metricName;
+
+    Stage(String metricName) {
+        this.metricName = metricName;
+    }
+
+    /**
+     * @return name of the stage in exported metrics
+     */
+    public String getMetricName() {
+        return metricName;
+    }
+}
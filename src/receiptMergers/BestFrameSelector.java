@@ -0,0 +1,141 @@
+package receiptMergers;
+
+import blurDetectors.BlurDetector;
+import metrics.PipelineMetrics;
+import metrics.Stage;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.function.Consumer;
+
+/**
+ * Selects the least blurry frames from a stream of frames. Only the best
+ * frames seen so far are kept in memory, and discarded frames may be
+ * released at once.
+ *
+ * Frames are scored on a downscaled copy, which is cheap enough to score
+ * every frame of a video.
+ */
+public class BestFrameSelector {
+
+    /**
+     * Frames are downscaled to have at most this size on the longest side before being scored.
+     */
+    private static final double SCORING_SIZE_LIMIT = 400;
+
+    private final BlurDetector blurDetector;
+    private final int capacity;
+    private final boolean releaseDiscarded;
+
+    /**
+     * The kept frames, with the most blurry frame at the head.
+     */
+    private final PriorityQueue<ReceiptMerger.MatPos> bestFrames;
+
+    private int offered = 0;
+
+    private Consumer<Mat> discardListener = frame -> {};
+
+    BestFrameSelector(BlurDetector blurDetector, int capacity, boolean releaseDiscarded) {
+        this.blurDetector = blurDetector;
+        this.capacity = capacity;
+        this.releaseDiscarded = releaseDiscarded;
+        this.bestFrames = new PriorityQueue<>(
+                Math.max(1, capacity),
+                Comparator.comparingDouble(ReceiptMerger.MatPos::getVar)
+        );
+    }
+
+    /**
+     * Scores the given frame, and keeps it if it's among the best frames seen so far.
+     * If the selector releases discarded frames, it takes ownership of the frame.
+     *
+     * @param frame frame to be considered
+     */
+    public void offer(Mat frame) {
+        offered++;
+        if (capacity <= 0) {
+            discard(frame);
+            return;
+        }
+
+        double var = PipelineMetrics.current().time(Stage.BLUR_SCORING, () -> score(frame));
+        if (bestFrames.size() < capacity) {
+            bestFrames.add(new ReceiptMerger.MatPos(frame, var));
+            return;
+        }
+
+        if (var <= bestFrames.peek().getVar()) {
+            discard(frame);
+            return;
+        }
+
+        discard(bestFrames.poll().getMat());
+        bestFrames.add(new ReceiptMerger.MatPos(frame, var));
+    }
+
+    private double score(Mat frame) {
+        double factor = Math.max(frame.width(), frame.height()) / SCORING_SIZE_LIMIT;
+        if (factor <= 1) {
+            return blurDetector.getVariance(frame);
+        }
+
+        Mat scaled = new Mat();
+        Size size = new Size(frame.width() / factor, frame.height() / factor);
+        Imgproc.resize(frame, scaled, size, 0, 0, Imgproc.INTER_AREA);
+        double var = blurDetector.getVariance(scaled);
+        scaled.release();
+        return var;
+    }
+
+    /**
+     * Sets a listener which is called with every frame the selector discards,
+     * before the frame is released. E.g. to release data belonging to the frame.
+     *
+     * @param discardListener the listener
+     */
+    public void setDiscardListener(Consumer<Mat> discardListener) {
+        this.discardListener = discardListener;
+    }
+
+    private void discard(Mat frame) {
+        discardListener.accept(frame);
+        if (releaseDiscarded) {
+            frame.release();
+        }
+    }
+
+    /**
+     * @return the number of frames offered to the selector
+     */
+    public int getOffered() {
+        return offered;
+    }
+
+    /**
+     * Removes the kept frames from the selector.
+     *
+     * @param size maximum number of frames to return. Frames beyond this are discarded.
+     * @return the least blurry frames, the least blurry frame first
+     */
+    public List<Mat> takeBestFrames(int size) {
+        List<ReceiptMerger.MatPos> sorted = new ArrayList<>(bestFrames);
+        bestFrames.clear();
+        sorted.sort(Comparator.comparingDouble(ReceiptMerger.MatPos::getVar).reversed());
+
+        List<Mat> frames = new ArrayList<>();
+        for (ReceiptMerger.MatPos matPos : sorted) {
+            if (frames.size() < size) {
+                frames.add(matPos.getMat());
+            } else {
+                discard(matPos.getMat());
+            }
+        }
+        return frames;
+    }
+}
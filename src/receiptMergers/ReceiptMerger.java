@@ -1,14 +1,19 @@
 package receiptMergers;
 
 import blurDetectors.BlurDetector;
+import blurDetectors.PixelResponseBlurDetector;
 import blurDetectors.TenengradBlurDetector;
+import metrics.PipelineMetrics;
+import metrics.Stage;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.opencv.core.*;
 import org.opencv.imgproc.Imgproc;
 import utilities.EdgeDetector;
+import utilities.MatScope;
 
 import java.util.*;
+import java.util.function.ToDoubleFunction;
 
 import static org.opencv.core.Core.FONT_HERSHEY_COMPLEX_SMALL;
 import static org.opencv.core.CvType.CV_8UC3;
@@ -29,9 +34,17 @@ public class ReceiptMerger {
     }
 
     public ReceiptMerger(boolean debug) {
+        this(debug, new TenengradBlurDetector());
+    }
+
+    /**
+     * @param debug Whether debug information should be drawn on the merged sections
+     * @param blurDetector Detector used to score frames and sections
+     */
+    public ReceiptMerger(boolean debug, BlurDetector blurDetector) {
         this.debug = debug;
         this.sectionFinder = new TextSectionFinder(SECTION_PADDING);
-        this.blurDetector = new TenengradBlurDetector();
+        this.blurDetector = blurDetector;
     }
 
     /**
@@ -49,10 +62,12 @@ public class ReceiptMerger {
             throw new IllegalArgumentException("Cannot extract rows from empty list");
         }
 
+        final PipelineMetrics metrics = PipelineMetrics.current();
         logger.info("Using first extracted frame as section reference.");
-        List<Section> sections = sectionFinder.findSections(frames.get(0));
+        List<Section> sections = metrics.time(Stage.SECTION_FINDING, () -> sectionFinder.findSections(frames.get(0)));
         logger.info("Found {} sections.", sections.size());
 
+        long mergeStart = System.nanoTime();
         for(Mat mat : frames) {
             varianceLists.add(getVarianceListRows(mat, sections, frames.indexOf(mat)));
         }
@@ -74,7 +89,10 @@ public class ReceiptMerger {
             }
         }
 
-        return mergeMats(new ArrayList<>(Arrays.asList(list)), frames);
+        Mat merged = mergeMats(new ArrayList<>(Arrays.asList(list)), frames);
+        metrics.record(Stage.MERGE, System.nanoTime() - mergeStart);
+        metrics.trackAllocation(merged);
+        return merged;
     }
 
     /**
@@ -85,12 +103,14 @@ public class ReceiptMerger {
      */
     private List<MatPos> getVarianceListRows(Mat imageMat, List<Section> sections, int referenceIndex) {
         List<MatPos> list = new LinkedList<>();
+        ToDoubleFunction<Range> sectionScorer = createSectionScorer(imageMat);
 
         int index = 0;
         for (Section section : sections) {
-            Mat rowMat = imageMat.rowRange(section.getRangeWithPadding());
+            Range range = section.getRangeWithPadding();
+            Mat rowMat = imageMat.rowRange(range);
 
-            double var = blurDetector.getVariance(rowMat);
+            double var = sectionScorer.applyAsDouble(range);
 
             // Add the new smaller mat with the position and its variance to the list
             list.add(new MatPos(rowMat, index, var, referenceIndex, section));
@@ -100,6 +120,23 @@ public class ReceiptMerger {
         return list;
     }
 
+    /**
+     * Creates a function which scores a range of rows in the given image.
+     *
+     * If the blur detector supports it, the focus response of the whole image is
+     * computed once and summed per row. A range is then scored from the prefix sums
+     * of the rows, with the same result as running the detector on every section.
+     *
+     * @param imageMat the mat from the image
+     * @return function from a range of rows to its variance
+     */
+    private ToDoubleFunction<Range> createSectionScorer(Mat imageMat) {
+        if (!(blurDetector instanceof PixelResponseBlurDetector)) {
+            return range -> blurDetector.getVariance(imageMat.rowRange(range));
+        }
+        return ((PixelResponseBlurDetector) blurDetector).createRangeScorer(imageMat);
+    }
+
     /**
      * Merge the subsections of the original image back to a big image again.
      *
@@ -144,25 +181,28 @@ public class ReceiptMerger {
 
         mats.removeAll(removeQueue);
 
-        Mat padding = createPaddingMat(mats.get(0).mat.size());
-        int i = 0;
-        for (MatPos section : mats) {
-            Mat m = section.getMat();
+        try (MatScope scope = new MatScope(Stage.MERGE)) {
+            Mat padding = scope.track(createPaddingMat(mats.get(0).mat.size()));
+            int i = 0;
+            for (MatPos section : mats) {
+                // Only a header of the frame, which is released by its owner
+                Mat m = scope.track(section.getMat());
 
-            if (debug) {
-                displayDebugOnSection(section, m);
-            }
-            rowList.add(m);
+                if (debug) {
+                    displayDebugOnSection(section, m);
+                }
+                rowList.add(m);
 
-            if (i < mats.size() - 1) {
-                // For all but last, add bottom padding
-                rowList.add(padding);
+                if (i < mats.size() - 1) {
+                    // For all but last, add bottom padding
+                    rowList.add(padding);
+                }
+                i++;
             }
-            i++;
-        }
 
-        // Combine all the best sections to a single matrix
-        Core.vconcat(rowList, res);
+            // Combine all the best sections to a single matrix
+            Core.vconcat(rowList, res);
+        }
 
         return res;
     }
@@ -206,23 +246,24 @@ public class ReceiptMerger {
      * @return the list that contains the least blurry mats
      */
     public List<Mat> getBestFrames(List<Mat> frames, int size) {
-
-        List<Mat> bestFrames = new LinkedList<>();
-        Queue<MatPos> pq = new PriorityQueue<>();
-
-        // Add all mats to the priority queue
-        for(Mat mat : frames) {
-            double var = blurDetector.getVariance(mat);
-            pq.add(new MatPos(mat, var));
+        // The frames are owned by the caller, so none are released
+        BestFrameSelector frameSelector = new BestFrameSelector(blurDetector, size, false);
+        for (Mat mat : frames) {
+            frameSelector.offer(mat);
         }
 
-        // Take out size elements that have the highest variance
-        for(int i = 0; i < size; i++) {
-            Mat mat = pq.poll().getMat();
-            bestFrames.add(mat);
-        }
+        return frameSelector.takeBestFrames(size);
+    }
 
-        return bestFrames;
+    /**
+     * Creates a selector which keeps the least blurry frames from a stream of frames.
+     * The selector releases all frames it discards.
+     *
+     * @param size the number of frames the selector will keep
+     * @return a new selector
+     */
+    public BestFrameSelector createBestFrameSelector(int size) {
+        return new BestFrameSelector(blurDetector, size, true);
     }
 
     static class MatPos implements Comparable<MatPos> {
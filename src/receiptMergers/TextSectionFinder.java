@@ -1,7 +1,11 @@
 package receiptMergers;
 
+import metrics.Stage;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
 import org.opencv.core.Mat;
 import utilities.ContrastDetector;
+import utilities.MatScope;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -31,7 +35,7 @@ public class TextSectionFinder implements SectionFinder {
      */
     private static final int MIN_ROW_HEIGHT = 10;
 
-    private static ContrastDetector contrastDetector;
+    private final ContrastDetector contrastDetector;
 
     TextSectionFinder(final int padding) {
         contrastDetector = new ContrastDetector();
@@ -42,28 +46,33 @@ public class TextSectionFinder implements SectionFinder {
      * {@inheritDoc}
      */
     public List<Section> findSections(Mat source) {
-        Mat gray = new Mat();
-        cvtColor(source, gray, COLOR_BGR2GRAY);
+        final double[] rowProfile;
+        try (MatScope scope = new MatScope(Stage.SECTION_FINDING)) {
+            Mat gray = scope.newMat(source.size(), CvType.CV_8U);
+            cvtColor(source, gray, COLOR_BGR2GRAY);
 
-        double thresholdValue = calculateThreshold(source);
+            double thresholdValue = calculateThreshold(source);
 
-        Mat binary = new Mat();
-        threshold(gray, binary, thresholdValue, 255, THRESH_BINARY);
+            Mat binary = scope.newMat(source.size(), CvType.CV_8U);
+            threshold(gray, binary, thresholdValue, 255, THRESH_BINARY);
+
+            rowProfile = calculateRowProfile(binary);
+        }
+        final int[] nextPaddingBreak = calculateNextPaddingBreak(rowProfile);
 
         List<Section> sections = new ArrayList<>();
 
         Integer start = null;
-        for (int y = 0; y < binary.height(); y++) {
-            double rowAverage = rowPixelAverage(binary, y);
-
+        for (int y = 0; y < rowProfile.length; y++) {
             // Find first black row (going down)
-            if (start == null && rowAverage <= WHITE_PIXEL_THRESHOLD) {
+            if (start == null && rowProfile[y] <= WHITE_PIXEL_THRESHOLD) {
                 start = y;
                 continue;
             }
 
             // Continue until we find a bottom padding, then we have our stop point.
-            if (start != null && rowHasBottomPadding(y, binary)) {
+            // The padding is the `padding` rows below y, which all have to be white.
+            if (start != null && nextPaddingBreak[y] > y + padding) {
                 if (y - start < MIN_ROW_HEIGHT) {
                     continue;
                 }
@@ -78,45 +87,53 @@ public class TextSectionFinder implements SectionFinder {
         return sections;
     }
 
-    private static double calculateThreshold(Mat source) {
+    private double calculateThreshold(Mat source) {
         // By testing a few samples, we can map a contrast value
         // to a threshold value. This is sadly very fragile if we don't
         // have a perfect sample library; but adaptive thresholds aren't an option here.
         return 368.4392032814367 - 186.2830192604969 * contrastDetector.calculateContrast(source);
     }
 
-    private double rowPixelAverage(Mat source, int row) {
-        List<Double> rowSum = new ArrayList<>();
-        for (int x = 0; x < source.width(); x++) {
-            double[] doubles = source.get(row, x);
-            double sum = 0;
-            for (double d : doubles) {
-                sum += d;
-            }
-            rowSum.add(sum / doubles.length);
-        }
-
-        double sum = 0;
-        for (double d : rowSum) {
-            sum += d;
+    /**
+     * Calculates the average pixel value of every row in the given
+     * single channel source.
+     *
+     * @param source single channel source
+     * @return row averages, indexed by row
+     */
+    private double[] calculateRowProfile(Mat source) {
+        // Sum natively, the division is done here to get the exact same
+        // averages as when summing the pixels one by one.
+        Mat rowSums = new Mat();
+        Core.reduce(source, rowSums, 1, Core.REDUCE_SUM, CvType.CV_64F);
+
+        double[] profile = new double[source.height()];
+        rowSums.get(0, 0, profile);
+        rowSums.release();
+
+        for (int y = 0; y < profile.length; y++) {
+            profile[y] /= source.width();
         }
-        return sum / rowSum.size();
+        return profile;
     }
 
-    private boolean rowHasBottomPadding(int row, Mat source) {
-        for (int offset = 1; offset <= padding; offset++) {
-            int paddingRow = row + offset;
-            if (paddingRow <= 0 || paddingRow >= source.height()) {
-                // Row is outside mat bounds
-                return true;
-            }
-
-            if (rowPixelAverage(source, paddingRow) < WHITE_PIXEL_THRESHOLD) {
-                return false;
+    /**
+     * For every row, finds the closest row below it which isn't white
+     * enough to be part of a bottom padding.
+     *
+     * @param rowProfile row averages
+     * @return index of the next non-white row for every row, or
+     * {@link Integer#MAX_VALUE} if there is none (rows outside the source counts as padding)
+     */
+    private int[] calculateNextPaddingBreak(double[] rowProfile) {
+        int[] nextBreak = new int[rowProfile.length];
+        int next = Integer.MAX_VALUE;
+        for (int y = rowProfile.length - 1; y >= 0; y--) {
+            nextBreak[y] = next;
+            if (rowProfile[y] < WHITE_PIXEL_THRESHOLD) {
+                next = y;
             }
         }
-
-        return true;
+        return nextBreak;
     }
 }
-
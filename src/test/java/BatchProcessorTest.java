@@ -0,0 +1,116 @@
+import blurDetectors.BlurDetectorType;
+import metrics.MetricsRegistry;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opencv.core.Core;
+import utilities.AlignmentMode;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class BatchProcessorTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private BatchProcessor batchProcessor;
+
+    @Before
+    public void setUp() {
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+        batchProcessor = new BatchProcessor(2, 2, BlurDetectorType.TENENGRAD, AlignmentMode.PYRAMID, MetricsRegistry.NONE, null);
+    }
+
+    private Path getVideoPath() {
+        return Paths.get(BatchProcessorTest.class.getResource("/videos/receipt-video.mp4").getFile().substring(1));
+    }
+
+    @Test
+    public void testListVideosFromManifest() throws IOException {
+        Path manifest = folder.newFile("manifest.txt").toPath();
+        Files.write(manifest, Arrays.asList("# Comment", "a.mp4", "", "  sub/b.mp4  "), StandardCharsets.UTF_8);
+
+        List<Path> videos;
+        try (Stream<Path> stream = BatchProcessor.listVideos(manifest)) {
+            videos = stream.collect(Collectors.toList());
+        }
+
+        Path directory = manifest.toAbsolutePath().getParent();
+        assertEquals(Arrays.asList(directory.resolve("a.mp4"), directory.resolve("sub/b.mp4")), videos);
+    }
+
+    @Test
+    public void testProcessReportsEveryJob() throws IOException {
+        Path input = folder.newFolder("input").toPath();
+        Files.copy(getVideoPath(), input.resolve("receipt.mp4"));
+        Files.write(input.resolve("broken.mp4"), new byte[]{1, 2, 3});
+        Path output = folder.newFolder("output").toPath();
+
+        List<BatchProcessor.JobResult> results;
+        try (Stream<Path> videos = BatchProcessor.listVideos(input)) {
+            results = batchProcessor.process(videos, output);
+        }
+
+        assertEquals(2, results.size());
+        for (BatchProcessor.JobResult result : results) {
+            if (result.getVideo().endsWith("broken.mp4")) {
+                assertEquals(BatchProcessor.JobStatus.FAILED, result.getStatus());
+                assertNotNull(result.getError());
+            } else {
+                assertEquals(BatchProcessor.JobStatus.DONE, result.getStatus());
+                assertTrue(Files.exists(result.getOutput()));
+            }
+        }
+
+        // Header and one line per job
+        List<String> summary = Files.readAllLines(output.resolve(BatchProcessor.SUMMARY_FILE), StandardCharsets.UTF_8);
+        assertEquals(3, summary.size());
+
+        // Finished videos are skipped when the batch is resumed
+        try (Stream<Path> videos = Stream.of(input.resolve("receipt.mp4"))) {
+            results = batchProcessor.process(videos, output);
+        }
+        assertEquals(BatchProcessor.JobStatus.SKIPPED, results.get(0).getStatus());
+        // Only the receipts and the summary are left behind
+        try (Stream<Path> files = Files.list(output)) {
+            assertEquals(2, files.count());
+        }
+    }
+
+    @Test
+    public void testCollidingOutputNamesFail() throws IOException {
+        Path input = folder.newFolder("input").toPath();
+        Files.copy(getVideoPath(), input.resolve("receipt.mp4"));
+        Files.copy(getVideoPath(), input.resolve("receipt.mov"));
+        Path output = folder.newFolder("output").toPath();
+
+        List<BatchProcessor.JobResult> results;
+        try (Stream<Path> videos = BatchProcessor.listVideos(input)) {
+            results = batchProcessor.process(videos, output);
+        }
+
+        assertEquals(2, results.size());
+        for (BatchProcessor.JobResult result : results) {
+            // Listed in name order, so the .mov is first
+            if (result.getVideo().endsWith("receipt.mov")) {
+                assertEquals(BatchProcessor.JobStatus.DONE, result.getStatus());
+            } else {
+                assertEquals(BatchProcessor.JobStatus.FAILED, result.getStatus());
+                assertTrue(result.getError().contains("receipt.mov"));
+            }
+        }
+    }
+}
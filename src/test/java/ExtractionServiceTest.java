@@ -0,0 +1,158 @@
+import blurDetectors.BlurDetectorType;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import metrics.MetricsRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opencv.core.Core;
+import utilities.AlignmentMode;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ExtractionServiceTest {
+
+    private ExtractionService service;
+
+    @Before
+    public void setUp() throws IOException {
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+        service = new ExtractionService(new InetSocketAddress("localhost", 0), 1, 1,
+                BlurDetectorType.TENENGRAD, AlignmentMode.PYRAMID, MetricsRegistry.NONE, null);
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        service.close();
+    }
+
+    private String getVideoPath() {
+        return ExtractionServiceTest.class.getResource("/videos/receipt-video.mp4").getFile().substring(1);
+    }
+
+    private HttpURLConnection open(String path) throws IOException {
+        URL url = new URL("http", "localhost", service.getAddress().getPort(), path);
+        return (HttpURLConnection) url.openConnection();
+    }
+
+    private HttpURLConnection submit(String videoPath) throws IOException {
+        JsonObject request = new JsonObject();
+        request.addProperty("path", videoPath);
+        return submit(request);
+    }
+
+    private HttpURLConnection submit(JsonObject request) throws IOException {
+        HttpURLConnection connection = open("/jobs");
+        connection.setRequestMethod("POST");
+        connection.setRequestProperty("Content-Type", "application/json");
+        connection.setDoOutput(true);
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(request.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        return connection;
+    }
+
+    private JsonObject readJson(HttpURLConnection connection) throws IOException {
+        InputStream in = connection.getResponseCode() < 400 ? connection.getInputStream() : connection.getErrorStream();
+        try (InputStreamReader reader = new InputStreamReader(in, StandardCharsets.UTF_8)) {
+            return new JsonParser().parse(reader).getAsJsonObject();
+        }
+    }
+
+    @Test
+    public void testExtractFromPath() throws Exception {
+        HttpURLConnection submitted = submit(getVideoPath());
+        assertEquals(202, submitted.getResponseCode());
+        String id = readJson(submitted).get("id").getAsString();
+
+        String status;
+        do {
+            Thread.sleep(100);
+            status = readJson(open("/jobs/" + id)).get("status").getAsString();
+        } while (status.equals("QUEUED") || status.equals("RUNNING"));
+        assertEquals("DONE", status);
+
+        HttpURLConnection result = open("/jobs/" + id + "/result");
+        assertEquals(200, result.getResponseCode());
+        assertEquals("image/png", result.getContentType());
+        assertTrue(result.getContentLength() > 0);
+    }
+
+    @Test
+    public void testRejectsWhenQueueIsFull() throws IOException {
+        // One job is running and one is queued, the rest are rejected
+        int rejected = 0;
+        for (int i = 0; i < 4; i++) {
+            HttpURLConnection submitted = submit(getVideoPath());
+            if (submitted.getResponseCode() == 429) {
+                assertTrue(submitted.getHeaderField("Retry-After") != null);
+                rejected++;
+            }
+        }
+        assertTrue(rejected >= 2);
+    }
+
+    @Test
+    public void testRejectsInvalidRequests() throws IOException {
+        JsonObject numberPath = new JsonObject();
+        numberPath.addProperty("path", 42);
+        assertEquals(400, submit(numberPath).getResponseCode());
+
+        JsonObject nullPath = new JsonObject();
+        nullPath.add("path", JsonNull.INSTANCE);
+        assertEquals(400, submit(nullPath).getResponseCode());
+
+        JsonObject objectGlare = new JsonObject();
+        objectGlare.addProperty("path", getVideoPath());
+        objectGlare.add("detectGlare", new JsonObject());
+        assertEquals(400, submit(objectGlare).getResponseCode());
+    }
+
+    @Test
+    public void testRejectsOversizedUploads() throws Exception {
+        ExtractionService limited = new ExtractionService(new InetSocketAddress("localhost", 0), 1, 1,
+                BlurDetectorType.TENENGRAD, AlignmentMode.PYRAMID, MetricsRegistry.NONE, null, 1024);
+        try {
+            URL url = new URL("http", "localhost", limited.getAddress().getPort(), "/jobs");
+            byte[] video = new byte[4096];
+
+            // Declared too large
+            HttpURLConnection declared = (HttpURLConnection) url.openConnection();
+            declared.setRequestMethod("POST");
+            declared.setFixedLengthStreamingMode(video.length);
+            declared.setDoOutput(true);
+            try (OutputStream out = declared.getOutputStream()) {
+                out.write(video);
+            }
+            assertEquals(413, declared.getResponseCode());
+
+            // Found too large while copying
+            HttpURLConnection chunked = (HttpURLConnection) url.openConnection();
+            chunked.setRequestMethod("POST");
+            chunked.setChunkedStreamingMode(512);
+            chunked.setDoOutput(true);
+            try (OutputStream out = chunked.getOutputStream()) {
+                out.write(video);
+            }
+            assertEquals(413, chunked.getResponseCode());
+        } finally {
+            limited.close();
+        }
+    }
+
+    @Test
+    public void testUnknownJob() throws IOException {
+        assertEquals(404, open("/jobs/unknown").getResponseCode());
+    }
+}
@@ -1,17 +1,33 @@
+import cache.ResultCache;
+import metrics.Counter;
+import metrics.MetricsReport;
+import metrics.PipelineMetrics;
+import metrics.Stage;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.opencv.core.Core;
 import org.opencv.core.Mat;
 import org.opencv.videoio.VideoCapture;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
 public class ReceiptExtractorTest {
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     private ReceiptExtractor receiptExtractor;
 
     @Before
@@ -48,4 +64,69 @@ public class ReceiptExtractorTest {
     public void testExtractVideoReflectionNoEdges() {
         testVideo("reflection-test-no-edges.mp4", 14, true);
     }
+
+    @Test
+    public void testParallelExtractionEqualsSequential() {
+        String videoPath = ReceiptExtractorTest.class.getResource("/videos/receipt-video.mp4").getFile().substring(1);
+        List<Mat> sequential = receiptExtractor.extractReceipts(new VideoCapture(videoPath), false);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Mat> parallel = new ReceiptExtractor(executor).extractReceipts(new VideoCapture(videoPath), false);
+
+            assertEquals(sequential.size(), parallel.size());
+            for (int i = 0; i < sequential.size(); i++) {
+                assertEquals(sequential.get(i).size(), parallel.get(i).size());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testMetricsAreRecordedOnWorkerThreads() {
+        String videoPath = ReceiptExtractorTest.class.getResource("/videos/receipt-video.mp4").getFile().substring(1);
+        PipelineMetrics metrics = new PipelineMetrics();
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Mat> receipts = metrics.call(
+                    () -> new ReceiptExtractor(executor).extractReceipts(new VideoCapture(videoPath), false)
+            );
+
+            MetricsReport report = metrics.report();
+            assertTrue(report.getCount(Counter.FRAMES_DECODED) > 0);
+            assertEquals(report.getCount(Counter.FRAMES_DECODED), report.getCalls(Stage.BLUR_SCORING));
+            // Every selected frame is either extracted and aligned, or counted as a failure
+            assertEquals(report.getCalls(Stage.EDGE_DETECTION),
+                    report.getCalls(Stage.ALIGNMENT) - 1 + report.getCount(Counter.FAILED_EXTRACTIONS));
+            assertEquals(receipts.size(),
+                    report.getCalls(Stage.ALIGNMENT) - 1 - report.getCount(Counter.FAILED_ALIGNMENTS));
+            assertTrue(report.getCount(Counter.MAT_BYTES_ALLOCATED) > 0);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testCachedReceiptSkipsExtraction() throws IOException {
+        Path videoPath = Paths.get(ReceiptExtractorTest.class.getResource("/videos/receipt-video.mp4").getFile().substring(1));
+        ResultCache resultCache = new ResultCache(folder.newFolder().toPath(), 1L << 30, 1L << 20);
+
+        byte[] extracted = receiptExtractor.extractEncodedSuperReceipt(videoPath, false, ".png", resultCache);
+
+        PipelineMetrics metrics = new PipelineMetrics();
+        byte[] cached = metrics.call(() -> {
+            try {
+                return receiptExtractor.extractEncodedSuperReceipt(videoPath, false, ".png", resultCache);
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+        });
+
+        assertArrayEquals(extracted, cached);
+        MetricsReport report = metrics.report();
+        assertEquals(1, report.getCount(Counter.CACHE_HITS));
+        assertEquals(0, report.getCount(Counter.FRAMES_DECODED));
+    }
 }
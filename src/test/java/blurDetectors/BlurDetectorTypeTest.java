@@ -0,0 +1,83 @@
+package blurDetectors;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.Range;
+import org.opencv.imgcodecs.Imgcodecs;
+
+import java.util.function.ToDoubleFunction;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BlurDetectorTypeTest {
+
+    @Before
+    public void setUp() {
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+    }
+
+    @Test
+    public void testAllDetectorsRankSharperImageHigher() {
+        String path = BlurDetectorTypeTest.class.getResource("/images/example.png").getFile().substring(1);
+        String path2 = BlurDetectorTypeTest.class.getResource("/images/example2.png").getFile().substring(1);
+
+        Mat imageMat = Imgcodecs.imread(path);
+        Mat imageMat2 = Imgcodecs.imread(path2);
+
+        for (BlurDetectorType type : BlurDetectorType.values()) {
+            BlurDetector blurDetector = type.create();
+            double var = blurDetector.getVariance(imageMat);
+            double var2 = blurDetector.getVariance(imageMat2);
+
+            assertTrue(type + " should give a positive value", var > 0);
+            //imageMat is a more blurry image than imageMat2
+            assertTrue(type + " should rank the sharper image higher", var2 > var);
+        }
+    }
+
+    @Test
+    public void testFromName() {
+        assertEquals(BlurDetectorType.TENENGRAD, BlurDetectorType.fromName("tenengrad"));
+        assertEquals(BlurDetectorType.LAPLACIAN_VARIANCE, BlurDetectorType.fromName("laplacian-variance"));
+        assertEquals(BlurDetectorType.MODIFIED_LAPLACIAN, BlurDetectorType.fromName("MODIFIED_LAPLACIAN"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testFromUnknownName() {
+        BlurDetectorType.fromName("unknown");
+    }
+
+    @Test
+    public void testRangeScoresMatchVariance() {
+        String path = BlurDetectorTypeTest.class.getResource("/images/example2.png").getFile().substring(1);
+        Mat imageMat = Imgcodecs.imread(path);
+        int rows = imageMat.rows();
+        Range[] ranges = {
+                new Range(rows / 4, rows / 2),
+                new Range(0, rows / 3),
+                new Range(rows / 2, rows),
+                new Range(rows / 3, rows / 3 + 1),
+                new Range(rows / 3, rows / 3 + 2)
+        };
+
+        for (BlurDetectorType type : BlurDetectorType.values()) {
+            BlurDetector blurDetector = type.create();
+            if (!(blurDetector instanceof PixelResponseBlurDetector)) {
+                continue;
+            }
+
+            double[] rowSums = ((PixelResponseBlurDetector) blurDetector).getRowResponseSums(imageMat);
+            assertEquals(imageMat.rows(), rowSums.length);
+
+            ToDoubleFunction<Range> scorer = ((PixelResponseBlurDetector) blurDetector).createRangeScorer(imageMat);
+            for (Range range : ranges) {
+                // The responses are integers, so only the summation order may differ
+                double expected = blurDetector.getVariance(imageMat.rowRange(range));
+                assertEquals(type + " " + range, expected, scorer.applyAsDouble(range), expected * 1e-9);
+            }
+        }
+    }
+}
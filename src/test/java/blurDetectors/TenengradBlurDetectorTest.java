@@ -6,6 +6,7 @@ import org.opencv.core.Core;
 import org.opencv.core.Mat;
 import org.opencv.imgcodecs.Imgcodecs;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 public class TenengradBlurDetectorTest {
@@ -40,4 +41,19 @@ public class TenengradBlurDetectorTest {
         //imageMat is a more blurry image than imageMat2 therefore imageMat2 should return a larger variance value
         assertTrue(var2 > var);
     }
+
+    @Test
+    public void testGetVarianceEqualsAllocatingReference() {
+        String path = TenengradBlurDetectorTest.class.getResource("/images/example.png").getFile().substring(1);
+        Mat imageMat = Imgcodecs.imread(path);
+        TenengradBlurDetector tenengradBlurDetector = new TenengradBlurDetector();
+
+        double expected = tenengradBlurDetector.getVarianceAllocating(imageMat);
+        assertEquals(expected, tenengradBlurDetector.getVariance(imageMat), expected * 1e-9);
+
+        // Sections are row ranges of differing sizes, which the scratch buffers must handle
+        Mat section = imageMat.rowRange(0, imageMat.rows() / 3);
+        expected = tenengradBlurDetector.getVarianceAllocating(section);
+        assertEquals(expected, tenengradBlurDetector.getVariance(section), expected * 1e-9);
+    }
 }
@@ -0,0 +1,119 @@
+package cache;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ResultCacheTest {
+
+    private static final String A = createKey('a');
+    private static final String B = createKey('b');
+    private static final String C = createKey('c');
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static String createKey(char digit) {
+        char[] key = new char[64];
+        Arrays.fill(key, digit);
+        return new String(key);
+    }
+
+    @Test
+    public void testKeyDependsOnContentAndConfiguration() throws IOException {
+        Path first = folder.newFile("first.mp4").toPath();
+        Path second = folder.newFile("second.mp4").toPath();
+        Files.write(first, new byte[]{1, 2, 3});
+        Files.write(second, new byte[]{1, 2, 3});
+
+        assertEquals(ResultCache.createKey(first, "a"), ResultCache.createKey(second, "a"));
+        assertNotEquals(ResultCache.createKey(first, "a"), ResultCache.createKey(first, "b"));
+
+        Files.write(second, new byte[]{1, 2, 4});
+        assertNotEquals(ResultCache.createKey(first, "a"), ResultCache.createKey(second, "a"));
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() throws IOException {
+        ResultCache cache = new ResultCache(folder.newFolder().toPath(), 25, 0);
+        cache.put(A, new byte[10]);
+        cache.put(B, new byte[10]);
+        cache.get(A);
+        cache.put(C, new byte[10]);
+
+        assertArrayEquals(new byte[10], cache.get(A));
+        assertNull(cache.get(B));
+        assertArrayEquals(new byte[10], cache.get(C));
+        assertEquals(20, cache.getDiskBytes());
+    }
+
+    @Test
+    public void testMemoryTierIsBounded() throws IOException {
+        ResultCache cache = new ResultCache(folder.newFolder().toPath(), 100, 15);
+        cache.put(A, new byte[10]);
+        assertEquals(10, cache.getMemoryBytes());
+
+        cache.put(B, new byte[10]);
+        assertEquals(10, cache.getMemoryBytes());
+        // Evicted from memory only
+        assertArrayEquals(new byte[10], cache.get(A));
+    }
+
+    @Test
+    public void testResultsSurviveRestart() throws IOException {
+        Path directory = folder.newFolder().toPath();
+        new ResultCache(directory, 100, 0).put(A, new byte[]{4, 2});
+
+        ResultCache reopened = new ResultCache(directory, 100, 0);
+        assertArrayEquals(new byte[]{4, 2}, reopened.get(A));
+        assertEquals(2, reopened.getDiskBytes());
+    }
+
+    @Test
+    public void testKeepsOtherFiles() throws IOException {
+        Path directory = folder.newFolder().toPath();
+        Path other = directory.resolve("notes.txt");
+        Files.write(other, new byte[100]);
+        Path otherTemp = directory.resolve("download.tmp");
+        Files.write(otherTemp, new byte[100]);
+
+        // Far too small for the other files, were they results
+        ResultCache cache = new ResultCache(directory, 10, 0);
+        cache.put(A, new byte[10]);
+        cache.put(B, new byte[10]);
+
+        assertTrue(Files.exists(other));
+        assertTrue(Files.exists(otherTemp));
+        assertEquals(10, cache.getDiskBytes());
+    }
+
+    @Test
+    public void testMemoryHitsKeepDiskRecency() throws IOException {
+        Path directory = folder.newFolder().toPath();
+        ResultCache cache = new ResultCache(directory, 100, 100);
+        cache.put(A, new byte[10]);
+        cache.put(B, new byte[10]);
+        Files.setLastModifiedTime(directory.resolve(A), FileTime.fromMillis(0));
+        Files.setLastModifiedTime(directory.resolve(B), FileTime.fromMillis(1000));
+
+        // Served from memory
+        cache.get(A);
+
+        // After a restart, B is the least recently used
+        ResultCache reopened = new ResultCache(directory, 15, 0);
+        assertArrayEquals(new byte[10], reopened.get(A));
+        assertNull(reopened.get(B));
+    }
+}
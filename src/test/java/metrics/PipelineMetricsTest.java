@@ -0,0 +1,70 @@
+package metrics;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class PipelineMetricsTest {
+
+    @Test
+    public void testNothingIsRecordedWhenUnbound() {
+        PipelineMetrics.current().increment(Counter.FAILED_EXTRACTIONS);
+        PipelineMetrics.current().record(Stage.DECODE, 100);
+
+        MetricsReport report = PipelineMetrics.current().report();
+        assertEquals(0, report.getCount(Counter.FAILED_EXTRACTIONS));
+        assertEquals(0, report.getCalls(Stage.DECODE));
+    }
+
+    @Test
+    public void testCallBindsAndRestores() {
+        PipelineMetrics outer = new PipelineMetrics();
+        PipelineMetrics inner = new PipelineMetrics();
+
+        outer.call(() -> {
+            assertSame(outer, PipelineMetrics.current());
+            inner.call(() -> {
+                PipelineMetrics.current().increment(Counter.SMART_REDUCTION_FALLBACKS);
+                return null;
+            });
+            assertSame(outer, PipelineMetrics.current());
+            return null;
+        });
+
+        assertEquals(0, outer.report().getCount(Counter.SMART_REDUCTION_FALLBACKS));
+        assertEquals(1, inner.report().getCount(Counter.SMART_REDUCTION_FALLBACKS));
+    }
+
+    @Test
+    public void testTimeRecordsEveryCall() {
+        PipelineMetrics metrics = new PipelineMetrics();
+        int result = metrics.time(Stage.MERGE, () -> 42);
+        metrics.time(Stage.MERGE, () -> { });
+        metrics.record(Stage.MERGE, 1000);
+
+        MetricsReport report = metrics.report();
+        assertEquals(42, result);
+        assertEquals(3, report.getCalls(Stage.MERGE));
+        assertTrue(report.getNanos(Stage.MERGE) >= 1000);
+        assertEquals(0, report.getCalls(Stage.DECODE));
+    }
+
+    @Test
+    public void testPrometheusScrapeAccumulatesReports() {
+        PipelineMetrics metrics = new PipelineMetrics();
+        metrics.record(Stage.DECODE, 1500000000L);
+        metrics.add(Counter.FAILED_EXTRACTIONS, 2);
+
+        PrometheusMetricsRegistry registry = new PrometheusMetricsRegistry();
+        registry.report(metrics.report());
+        registry.report(metrics.report());
+
+        String scrape = registry.scrape();
+        assertTrue(scrape.contains("receipt_jobs_total 2\n"));
+        assertTrue(scrape.contains("receipt_stage_seconds_total{stage=\"decode\"} 3\n"));
+        assertTrue(scrape.contains("receipt_stage_calls_total{stage=\"decode\"} 2\n"));
+        assertTrue(scrape.contains("receipt_failed_extractions_total 4\n"));
+    }
+}
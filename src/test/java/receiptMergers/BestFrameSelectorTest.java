@@ -0,0 +1,99 @@
+package receiptMergers;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.opencv.core.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BestFrameSelectorTest {
+
+    private BestFrameSelector frameSelector;
+
+    @Before
+    public void setUp() {
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+        // Score frames by their brightness, which makes the expected order obvious
+        frameSelector = new BestFrameSelector(source -> Core.mean(source).val[0], 3, true);
+    }
+
+    private Mat createFrame(int brightness) {
+        return new Mat(10, 10, CvType.CV_8UC3, new Scalar(brightness, brightness, brightness));
+    }
+
+    @Test
+    public void testKeepsBestFrames() {
+        List<Mat> offered = new ArrayList<>();
+        for (int brightness : new int[]{50, 200, 10, 150, 100, 250}) {
+            Mat frame = createFrame(brightness);
+            offered.add(frame);
+            frameSelector.offer(frame);
+        }
+        assertEquals(6, frameSelector.getOffered());
+
+        List<Mat> best = frameSelector.takeBestFrames(3);
+        assertEquals(3, best.size());
+        assertEquals(250, Core.mean(best.get(0)).val[0], 0);
+        assertEquals(200, Core.mean(best.get(1)).val[0], 0);
+        assertEquals(150, Core.mean(best.get(2)).val[0], 0);
+
+        // Discarded frames should have been released
+        for (Mat frame : offered) {
+            assertEquals(best.contains(frame), !frame.empty());
+        }
+    }
+
+    @Test
+    public void testTakeFewerThanKept() {
+        Mat worst = createFrame(10);
+        frameSelector.offer(worst);
+        frameSelector.offer(createFrame(20));
+        frameSelector.offer(createFrame(30));
+
+        List<Mat> best = frameSelector.takeBestFrames(2);
+        assertEquals(2, best.size());
+        assertEquals(30, Core.mean(best.get(0)).val[0], 0);
+        assertTrue(worst.empty());
+        assertFalse(best.get(1).empty());
+    }
+
+    @Test
+    public void testKeepsDiscardedFramesIfNotReleasing() {
+        frameSelector = new BestFrameSelector(source -> Core.mean(source).val[0], 1, false);
+        Mat worst = createFrame(10);
+        frameSelector.offer(worst);
+        frameSelector.offer(createFrame(20));
+
+        assertEquals(1, frameSelector.takeBestFrames(1).size());
+        assertFalse(worst.empty());
+    }
+
+    @Test
+    public void testNotifiesDiscardedFrames() {
+        List<Mat> discarded = new ArrayList<>();
+        frameSelector.setDiscardListener(frame -> {
+            // Called before the frame is released
+            assertFalse(frame.empty());
+            discarded.add(frame);
+        });
+
+        Mat worst = createFrame(10);
+        Mat dropped = createFrame(20);
+        frameSelector.offer(worst);
+        frameSelector.offer(dropped);
+        frameSelector.offer(createFrame(30));
+        frameSelector.offer(createFrame(40));
+        frameSelector.offer(createFrame(5));
+        assertEquals(2, discarded.size());
+
+        frameSelector.takeBestFrames(2);
+        assertEquals(3, discarded.size());
+        assertTrue(discarded.contains(worst));
+        assertTrue(discarded.contains(dropped));
+    }
+}
@@ -0,0 +1,59 @@
+package receiptMergers;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.opencv.core.*;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class TextSectionFinderTest {
+
+    private static final int PADDING = 8;
+
+    private SectionFinder sectionFinder;
+
+    @Before
+    public void setUp() {
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+        sectionFinder = new TextSectionFinder(PADDING);
+    }
+
+    private void drawTextRow(Mat source, int yStart, int yStop) {
+        Imgproc.rectangle(source, new Point(20, yStart), new Point(180, yStop), new Scalar(0, 0, 0), -1);
+    }
+
+    @Test
+    public void testFindSections() {
+        Mat source = new Mat(300, 200, CvType.CV_8UC3, new Scalar(255, 255, 255));
+        drawTextRow(source, 20, 40);
+        drawTextRow(source, 100, 130);
+        // Touches the bottom border, which counts as padding
+        drawTextRow(source, 280, 299);
+
+        List<Section> sections = sectionFinder.findSections(source);
+        assertEquals(3, sections.size());
+
+        assertEquals(20, sections.get(0).getStart());
+        assertEquals(40, sections.get(0).getStop());
+        assertEquals(100, sections.get(1).getStart());
+        assertEquals(130, sections.get(1).getStop());
+        assertEquals(280, sections.get(2).getStart());
+        assertEquals(299, sections.get(2).getStop());
+    }
+
+    @Test
+    public void testRowsWithoutPaddingAreMerged() {
+        Mat source = new Mat(200, 200, CvType.CV_8UC3, new Scalar(255, 255, 255));
+        // The gap between the rows is smaller than the padding
+        drawTextRow(source, 20, 40);
+        drawTextRow(source, 45, 70);
+
+        List<Section> sections = sectionFinder.findSections(source);
+        assertEquals(1, sections.size());
+        assertEquals(20, sections.get(0).getStart());
+        assertEquals(70, sections.get(0).getStop());
+    }
+}
@@ -0,0 +1,60 @@
+package utilities;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class CameraResponseCacheTest {
+
+    private static final String KEY = "debevec/full_image/Apple/iPhone 6/iso32";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Before
+    public void setUp() throws Exception {
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+    }
+
+    private Mat createResponse() {
+        // Same shape as the response calibrated from color images
+        Mat response = new Mat(256, 1, CvType.CV_32FC3);
+        Core.randu(response, 0, 10);
+        return response;
+    }
+
+    @Test
+    public void testResponseSurvivesRestart() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("responses.properties");
+        Mat response = createResponse();
+
+        new CameraResponseCache(file).put(KEY, response);
+
+        Mat cached = new CameraResponseCache(file).get(KEY);
+        assertNotNull(cached);
+        assertEquals(response.size(), cached.size());
+        assertEquals(response.type(), cached.type());
+        assertEquals(0, Core.norm(response, cached, Core.NORM_INF), 0);
+    }
+
+    @Test
+    public void testUnknownCameraIsNotCached() throws Exception {
+        CameraResponseCache cache = new CameraResponseCache(folder.getRoot().toPath().resolve("responses.properties"));
+        assertNull(cache.get(KEY));
+
+        // Without metadata, the camera can't be identified
+        Exposure exposure = new Exposure("image.jpg", new Mat(), 0.1f, null);
+        assertNull(CameraResponseCache.createKey("debevec", HDRRegion.FULL_IMAGE, Arrays.asList(exposure, exposure)));
+    }
+}
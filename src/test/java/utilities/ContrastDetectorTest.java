@@ -3,8 +3,10 @@ package utilities;
 import org.junit.Before;
 import org.junit.Test;
 import org.opencv.core.Core;
+import org.opencv.core.CvType;
 import org.opencv.core.Mat;
 import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
 
 import static org.junit.Assert.*;
 
@@ -47,4 +49,51 @@ public class ContrastDetectorTest {
         assertTrue(contrastDetector.calculateContrast(lowContrast) < contrastDetector.calculateContrast(midContrast1));
         assertEquals(contrastDetector.calculateContrast(midContrast1), contrastDetector.calculateContrast(midContrast2), .5);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testContrastEqualsPerPixelReference() {
+        String[] files = {"black.png", "white.png", "mix.png", "low-contrast.png", "mid-contrast.jpg", "mid-contrast2.jpg"};
+        for (String file : files) {
+            Mat source = getMatFromFile(file);
+            double expected = contrastDetector.calculateContrastPerPixel(source);
+            assertEquals(file, expected, contrastDetector.calculateContrast(source), 1e-9);
+        }
+    }
+
+    @Test
+    public void testContrastEqualsPerPixelReferenceOnSubmat() {
+        Mat source = getMatFromFile("mid-contrast.jpg");
+        Mat submat = source.submat(source.rows() / 4, source.rows() / 2, source.cols() / 4, source.cols() / 2);
+        assertFalse(submat.isContinuous());
+
+        double expected = contrastDetector.calculateContrastPerPixel(submat);
+        assertEquals(expected, contrastDetector.calculateContrast(submat), 1e-9);
+    }
+
+    @Test
+    public void testContrastWithChangingChannels() {
+        Mat source = getMatFromFile("mid-contrast.jpg");
+        Mat bgra = new Mat();
+        Imgproc.cvtColor(source, bgra, Imgproc.COLOR_BGR2BGRA);
+        Mat gray = new Mat();
+        Imgproc.cvtColor(source, gray, Imgproc.COLOR_BGR2GRAY);
+        // An odd number of pixels, which isn't a multiple of every channel count
+        Mat small = source.submat(0, 7, 0, 7);
+
+        // The buffer of the first, largest source is re-used for the others
+        for (Mat mat : new Mat[]{bgra, source, gray, small, bgra}) {
+            double expected = contrastDetector.calculateContrastPerPixel(mat);
+            assertEquals(mat.channels() + " channels", expected, contrastDetector.calculateContrast(mat), 1e-9);
+        }
+    }
+
+    @Test
+    public void testContrastEqualsPerPixelReferenceOnFloatSource() {
+        Mat source = getMatFromFile("low-contrast.png");
+        Mat floatSource = new Mat();
+        source.convertTo(floatSource, CvType.CV_32F);
+
+        double expected = contrastDetector.calculateContrastPerPixel(floatSource);
+        assertEquals(expected, contrastDetector.calculateContrast(floatSource), 1e-9);
+    }
+}
@@ -0,0 +1,69 @@
+package utilities;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.opencv.core.*;
+import org.opencv.imgproc.Imgproc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class CornerTrackerTest {
+
+    private static final int NUM_FRAMES = 5;
+    private static final int SHIFT_PER_FRAME = 3;
+
+    private CornerTracker cornerTracker;
+
+    @Before
+    public void setUp() {
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+        cornerTracker = new CornerTracker(new EdgeDetector(), false);
+    }
+
+    private Mat createFrame(int offset) {
+        // A white "receipt" on a black background, moving down-right
+        Mat frame = new Mat(600, 400, CvType.CV_8UC3, new Scalar(0, 0, 0));
+        Imgproc.rectangle(
+                frame,
+                new Point(100 + offset, 150 + offset),
+                new Point(300 + offset, 450 + offset),
+                new Scalar(255, 255, 255),
+                -1
+        );
+        return frame;
+    }
+
+    @Test
+    public void testTracksCornersBetweenFrames() {
+        MatOfPoint2f first = null;
+        for (int i = 0; i < NUM_FRAMES; i++) {
+            MatOfPoint2f corners = cornerTracker.findCorners(createFrame(i * SHIFT_PER_FRAME));
+            assertNotNull(corners);
+            if (first == null) {
+                first = corners;
+            }
+
+            // The top right corner should follow the receipt
+            Point expected = first.toArray()[0];
+            Point actual = corners.toArray()[0];
+            assertEquals(expected.x + i * SHIFT_PER_FRAME, actual.x, 1.5);
+            assertEquals(expected.y + i * SHIFT_PER_FRAME, actual.y, 1.5);
+        }
+
+        assertTrue("Corners should only be detected from scratch on the first frame(s)",
+                cornerTracker.getKeyframes() < NUM_FRAMES);
+        assertEquals(NUM_FRAMES, cornerTracker.getKeyframes() + cornerTracker.getTrackedFrames());
+    }
+
+    @Test
+    public void testTracksAfterCornersAreReleased() {
+        // The caller owns the returned corners
+        cornerTracker.findCorners(createFrame(0)).release();
+        MatOfPoint2f corners = cornerTracker.findCorners(createFrame(SHIFT_PER_FRAME));
+
+        assertNotNull(corners);
+        assertEquals(1, cornerTracker.getTrackedFrames());
+    }
+}
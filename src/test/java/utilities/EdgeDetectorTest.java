@@ -6,6 +6,7 @@ import org.opencv.core.*;
 import org.opencv.imgcodecs.Imgcodecs;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import static org.opencv.imgproc.Imgproc.boundingRect;
@@ -68,4 +69,47 @@ public class EdgeDetectorTest {
         assertTrue(extracted.size().width > 0 && extracted.size().height > 0);
     }
 
-}
\ No newline at end of file
+    @Test
+    public void testFindCornersMultiResolution() {
+        EdgeDetector multiResolution = new EdgeDetector(DetectionMode.MULTI_RESOLUTION);
+        for (String file : new String[]{"low-contrast.png", "mid-contrast.jpg", "mid-contrast2.jpg"}) {
+            Mat source = getMatFromFile(file);
+            MatOfPoint2f expected = edgeDetector.findCorners(source, false);
+            MatOfPoint2f actual = multiResolution.findCorners(source, false);
+
+            assertNotNull(file, expected);
+            assertNotNull(file, actual);
+
+            // Corners are refined in the full resolution source, and the threshold is
+            // derived from it, hence both modes should find the same corners
+            Point[] expectedCorners = expected.toArray();
+            Point[] actualCorners = actual.toArray();
+            for (int i = 0; i < expectedCorners.length; i++) {
+                assertEquals(file, expectedCorners[i].x, actualCorners[i].x, 5);
+                assertEquals(file, expectedCorners[i].y, actualCorners[i].y, 5);
+            }
+        }
+    }
+
+    @Test
+    public void testHasSaturatedRegion() {
+        Mat source = new Mat(400, 300, CvType.CV_8UC3, new Scalar(120, 120, 120));
+        assertFalse(edgeDetector.hasSaturatedRegion(source));
+
+        source.submat(new Rect(100, 100, 40, 40)).setTo(new Scalar(255, 255, 255));
+        assertTrue(edgeDetector.hasSaturatedRegion(source));
+    }
+
+    @Test
+    public void testGlareDetectionLeavesSourceUntouched() {
+        Mat source = getMatFromFile("mid-contrast.jpg");
+        Mat original = source.clone();
+
+        edgeDetector.findBoundingPolygon(source, true, false);
+
+        // Glare is painted on a clone, never on the caller's source
+        Mat difference = new Mat();
+        Core.absdiff(source, original, difference);
+        assertEquals(0, Core.countNonZero(difference.reshape(1)));
+    }
+}
@@ -0,0 +1,115 @@
+package utilities;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgcodecs.Imgcodecs;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class HDRCreatorTest {
+
+    /**
+     * Size of a receipt warped by the EdgeDetector.
+     */
+    private static final Size RECEIPT_SIZE = new Size(500, 1000);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Before
+    public void setUp() throws Exception {
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+    }
+
+    private String getDirectory() {
+        return HDRCreatorTest.class.getResource("/randomimages")
+                .getFile()
+                .substring(1);
+    }
+
+    private String getImagePath(String file) {
+        return HDRCreatorTest.class.getResource("/images/contrastTest/" + file)
+                .getFile()
+                .substring(1);
+    }
+
+    private List<Exposure> createSeries(String file) {
+        String path = getImagePath(file);
+        Exposure exposure = new Exposure(path, Imgcodecs.imread(path), 0.1f, null);
+        return Arrays.asList(exposure, exposure, exposure);
+    }
+
+    @Test
+    public void testWarpToReceipt() {
+        List<Mat> receipts = HDRCreator.warpToReceipt(createSeries("mid-contrast.jpg"));
+
+        assertNotNull(receipts);
+        assertEquals(3, receipts.size());
+        for (Mat receipt : receipts) {
+            assertEquals(RECEIPT_SIZE, receipt.size());
+        }
+    }
+
+    @Test
+    public void testWarpWithoutReceiptFallsBack() {
+        // Without a receipt, the full images are merged instead
+        assertNull(HDRCreator.warpToReceipt(createSeries("black.png")));
+    }
+
+    @Test
+    public void testMergeReceiptRegion() throws Exception {
+        Path directory = folder.newFolder().toPath();
+        Path image = Paths.get(getImagePath("mid-contrast.jpg"));
+        for (int i = 0; i < 3; i++) {
+            Files.copy(image, directory.resolve(i + ".jpg"));
+        }
+
+        Mat merged = HDRCreator.createHDR(directory.toString(), "mertens", null, HDRRegion.RECEIPT);
+        assertEquals(RECEIPT_SIZE, merged.size());
+        assertEquals(CvType.CV_8UC3, merged.type());
+    }
+
+    @Test
+    public void testMethodsKeepTheirIndex() {
+        Mat mertens = new Mat(1, 1, CvType.CV_8UC3);
+        List<Mat> merged = HDRCreator.inMethodOrder(Collections.singletonMap("mertens", mertens));
+
+        assertEquals(3, merged.size());
+        assertNull(merged.get(0));
+        assertNull(merged.get(1));
+        assertSame(mertens, merged.get(2));
+        mertens.release();
+    }
+
+    @Test
+    public void testDeadlineCancelsMethods() {
+        // Every method is still running when the deadline has passed
+        Map<String, Mat> merged = HDRCreator.createHDR(getDirectory(), 0, TimeUnit.SECONDS);
+        assertTrue(merged.isEmpty());
+
+        List<Mat> inOrder = HDRCreator.inMethodOrder(merged);
+        assertEquals(3, inOrder.size());
+        for (Mat image : inOrder) {
+            assertNull(image);
+        }
+    }
+}
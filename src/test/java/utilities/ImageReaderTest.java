@@ -0,0 +1,96 @@
+package utilities;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.imgcodecs.Imgcodecs;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+
+public class ImageReaderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Before
+    public void setUp() throws Exception {
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+    }
+
+    private String getDirectory() {
+        return ImageReaderTest.class.getResource("/randomimages")
+                .getFile()
+                .substring(1);
+    }
+
+    @Test
+    public void testReadExposuresKeepsOrder() {
+        List<String> paths = ImageReader.readImages(getDirectory());
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Exposure> exposures;
+        try {
+            exposures = ImageReader.readExposures(paths, executor);
+        } finally {
+            executor.shutdown();
+        }
+
+        assertEquals(paths.size(), exposures.size());
+        for (int i = 0; i < paths.size(); i++) {
+            Exposure exposure = exposures.get(i);
+            assertEquals(paths.get(i), exposure.getPath());
+
+            // Decoded from the bytes just like imread decodes the file
+            Mat expected = Imgcodecs.imread(paths.get(i));
+            assertEquals(expected.size(), exposure.getImage().size());
+            assertEquals(expected.type(), exposure.getImage().type());
+            assertEquals(0, Core.norm(expected, exposure.getImage(), Core.NORM_INF), 0);
+        }
+    }
+
+    @Test
+    public void testStreamImagesFiltersAndOrders() throws Exception {
+        Path root = folder.getRoot().toPath();
+        Path image = Paths.get(getDirectory(), "rgb.png");
+        Path nested = Files.createDirectory(root.resolve("b-nested"));
+
+        Files.copy(image, root.resolve("c.png"));
+        Files.copy(image, root.resolve("a.PNG"));
+        Files.copy(image, nested.resolve("d.png"));
+        // Wrong extension, and wrong content
+        Files.copy(image, root.resolve("e.txt"));
+        Files.write(root.resolve("f.jpg"), "not an image".getBytes(StandardCharsets.UTF_8));
+
+        try (Stream<Path> images = ImageReader.streamImages(root, ImageReader.UNLIMITED_DEPTH)) {
+            assertEquals(
+                    Arrays.asList(root.resolve("a.PNG"), nested.resolve("d.png"), root.resolve("c.png"), root.resolve("f.jpg")),
+                    images.collect(Collectors.toList())
+            );
+        }
+
+        // The content is only checked once the file is read for decoding
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try (Stream<Path> images = ImageReader.streamImages(root, 1)) {
+            List<String> paths = ImageReader.readExposures(images, executor).stream()
+                    .map(Exposure::getPath)
+                    .collect(Collectors.toList());
+            assertEquals(Arrays.asList(root.resolve("a.PNG").toString(), root.resolve("c.png").toString()), paths);
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
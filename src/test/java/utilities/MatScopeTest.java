@@ -0,0 +1,95 @@
+package utilities;
+
+import metrics.Counter;
+import metrics.PipelineMetrics;
+import metrics.Stage;
+import org.junit.Before;
+import org.junit.Test;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class MatScopeTest {
+
+    @Before
+    public void setUp() throws Exception {
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+    }
+
+    @Test
+    public void testTrackedMatsAreReleasedOnClose() {
+        Mat tracked;
+        Mat kept;
+        try (MatScope scope = new MatScope(Stage.EDGE_DETECTION)) {
+            tracked = scope.track(new Mat(10, 10, CvType.CV_8U));
+            kept = scope.keep(scope.track(new Mat(10, 10, CvType.CV_8U)));
+        }
+
+        assertTrue(tracked.empty());
+        assertFalse(kept.empty());
+        kept.release();
+    }
+
+    @Test
+    public void testPooledMatsAreReused() {
+        PipelineMetrics metrics = new PipelineMetrics();
+        metrics.call(() -> {
+            Mat first;
+            try (MatScope scope = new MatScope(Stage.SECTION_FINDING)) {
+                first = scope.newMat(20, 30, CvType.CV_8U);
+            }
+            // Returned to the pool, not released
+            assertFalse(first.empty());
+
+            try (MatScope scope = new MatScope(Stage.SECTION_FINDING)) {
+                assertSame(first, scope.newMat(20, 30, CvType.CV_8U));
+                assertNotSame(first, scope.newMat(20, 30, CvType.CV_8U));
+                assertNotSame(first, scope.newMat(20, 30, CvType.CV_8UC3));
+            }
+            return null;
+        });
+
+        assertEquals(1, metrics.report().getCount(Counter.MATS_REUSED));
+    }
+
+    @Test
+    public void testKeptMatsAreNotPooled() {
+        Mat kept;
+        try (MatScope scope = new MatScope(Stage.MERGE)) {
+            kept = scope.keep(scope.newMat(40, 50, CvType.CV_8U));
+        }
+
+        try (MatScope scope = new MatScope(Stage.MERGE)) {
+            assertNotSame(kept, scope.newMat(40, 50, CvType.CV_8U));
+        }
+        assertFalse(kept.empty());
+        kept.release();
+    }
+
+    @Test
+    public void testDrainReleasesPooledMats() {
+        // Start without the Mats pooled by earlier tests on this thread
+        MatScope.drainPool();
+        long bytes = MatScope.getTotalPooledBytes();
+
+        Mat pooled;
+        try (MatScope scope = new MatScope(Stage.MERGE)) {
+            pooled = scope.newMat(60, 70, CvType.CV_8UC3);
+        }
+        assertEquals(bytes + 60 * 70 * 3, MatScope.getTotalPooledBytes());
+
+        MatScope.drainPool();
+
+        assertTrue(pooled.empty());
+        assertEquals(bytes, MatScope.getTotalPooledBytes());
+        try (MatScope scope = new MatScope(Stage.MERGE)) {
+            assertNotSame(pooled, scope.newMat(60, 70, CvType.CV_8UC3));
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package utilities;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+public class ReceiptAlignerTest {
+
+    @Before
+    public void setUp() {
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+    }
+
+    @Test
+    public void testScaleHomography() {
+        // Translation by (10, 5) on a level with half the size
+        Mat homography = new Mat(3, 3, CvType.CV_64F);
+        homography.put(0, 0, 1, 0, 10, 0, 1, 5, 0, 0, 1);
+
+        double[] scaled = new double[9];
+        ReceiptAligner.scaleHomography(homography, 0.5).get(0, 0, scaled);
+
+        assertArrayEquals(new double[]{1, 0, 20, 0, 1, 10, 0, 0, 1}, scaled, 1e-12);
+    }
+
+    @Test
+    public void testAlignPyramid() {
+        String path = ReceiptAlignerTest.class.getResource("/images/kvitto.png").getFile().substring(1);
+        Mat receipt = Imgcodecs.imread(path);
+
+        // A receipt is trivially aligned after itself
+        ReceiptAligner receiptAligner = new ReceiptAligner(AlignmentMode.PYRAMID);
+        Mat aligned = receiptAligner.align(receipt, receipt);
+
+        assertNotNull(aligned);
+        assertEquals(receipt.size(), aligned.size());
+    }
+
+    @Test
+    public void testAlignPyramidShifted() {
+        String path = ReceiptAlignerTest.class.getResource("/images/kvitto.png").getFile().substring(1);
+        Mat reference = Imgcodecs.imread(path);
+
+        // Shift by an odd number of pixels, which the coarse level can't represent exactly
+        Mat translation = new Mat(2, 3, CvType.CV_64F);
+        translation.put(0, 0, 1, 0, 5, 0, 1, 3);
+        Mat receipt = new Mat();
+        Imgproc.warpAffine(reference, receipt, translation, reference.size());
+
+        ReceiptAligner receiptAligner = new ReceiptAligner(AlignmentMode.PYRAMID);
+        ReceiptAligner.Reference prepared = receiptAligner.prepareReference(reference);
+        Mat homography = receiptAligner.estimateHomography(prepared, receipt);
+        prepared.release();
+
+        assertNotNull(homography);
+        double[] h = new double[9];
+        homography.get(0, 0, h);
+        // Maps the receipt back onto the reference, within the error accepted from the coarse level
+        assertArrayEquals(new double[]{1, 0, 0, 1}, new double[]{h[0], h[1], h[3], h[4]}, 0.01);
+        assertArrayEquals(new double[]{-5, -3}, new double[]{h[2], h[5]}, 1.5);
+        assertArrayEquals(new double[]{0, 0}, new double[]{h[6], h[7]}, 1e-4);
+    }
+}
@@ -64,4 +64,38 @@ public class VideoSplitterTest {
         }
 
     }
+
+    @Test
+    public void testSamplingModesExtractSameFrames() {
+        String filePath = VideoSplitterTest.class.getResource("/videos/receipt-video.mp4").getFile().substring(1);
+
+        List<Mat> seekFrames = VideoSplitter.getFrames(new VideoCapture(filePath), 30, FrameSamplingMode.SEEK);
+        List<Mat> sequentialFrames = VideoSplitter.getFrames(new VideoCapture(filePath), 30, FrameSamplingMode.SEQUENTIAL);
+
+        assertTrue("Should extract frames", seekFrames.size() > 1);
+        assertEquals(seekFrames.size(), sequentialFrames.size());
+        for (int i = 0; i < seekFrames.size(); i++) {
+            Mat seekFrame = seekFrames.get(i);
+            assertEquals(seekFrame.size(), sequentialFrames.get(i).size());
+            assertEquals(seekFrame.type(), sequentialFrames.get(i).type());
+
+            // Seeking isn't frame exact with every codec, so the decoded pixels may differ
+            // slightly, but no other sampled frame may be closer than the one at the same index
+            double distance = Core.norm(seekFrame, sequentialFrames.get(i), Core.NORM_L1);
+            for (int j = 0; j < sequentialFrames.size(); j++) {
+                double other = Core.norm(seekFrame, sequentialFrames.get(j), Core.NORM_L1);
+                assertTrue("Frame " + i + " is closer to frame " + j, distance <= other);
+            }
+        }
+    }
+
+    @Test
+    public void testSelectSamplingMode() {
+        // Short videos are always decoded sequentially
+        assertEquals(FrameSamplingMode.SEQUENTIAL, VideoSplitter.selectSamplingMode(100, 50));
+        // Dense sampling of long videos
+        assertEquals(FrameSamplingMode.SEQUENTIAL, VideoSplitter.selectSamplingMode(1000, 4));
+        // Sparse sampling of long videos
+        assertEquals(FrameSamplingMode.SEEK, VideoSplitter.selectSamplingMode(3000, 99));
+    }
 }
@@ -0,0 +1,32 @@
+package utilities;
+
+import java.util.Locale;
+
+/**
+ * How the {@link ReceiptAligner} estimates the transformation between a receipt and its reference.
+ */
+public enum AlignmentMode {
+    /**
+     * Match features of the full size receipts, and fit a homography to all matches.
+     */
+    FULL,
+
+    /**
+     * Estimate the homography from the features of a downscaled level, which is used as is
+     * if enough matches agree with it closely. Otherwise it is refined on the full size
+     * receipts, only detecting features in windows around the agreeing matches, and matching
+     * each point only with those close to its coarse projection. If too few coarse matches
+     * agree, the full size receipts are matched without windows instead. The homography is
+     * estimated robustly, and receipts with too few agreeing matches are rejected.
+     */
+    PYRAMID;
+
+    /**
+     * @param name name of the mode, case insensitive
+     * @return the mode
+     * @throws IllegalArgumentException if there is no mode with the name
+     */
+    public static AlignmentMode fromName(String name) {
+        return valueOf(name.trim().toUpperCase(Locale.ROOT));
+    }
+}
@@ -0,0 +1,188 @@
+package utilities;
+
+import com.drew.metadata.Metadata;
+import com.drew.metadata.exif.ExifIFD0Directory;
+import com.drew.metadata.exif.ExifSubIFDDirectory;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.opencv.core.Mat;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.StringJoiner;
+import java.util.TreeSet;
+
+/**
+ * Persistent cache of calibrated camera response functions. The response function is a
+ * property of the camera and its exposure settings rather than of the scene, so it is
+ * calibrated once per camera make, model and ISO, and reused for every following series.
+ * Responses calibrated on warped receipts and on full images are kept apart, since the
+ * calibration samples differ.
+ *
+ * The functions are stored in a small properties file, which is rewritten on every new
+ * calibration. Safe to use from multiple threads.
+ */
+public class CameraResponseCache {
+
+    private static final Logger logger = LogManager.getLogger(CameraResponseCache.class);
+
+    private final Path file;
+    private final Properties responses = new Properties();
+
+    /**
+     * Creates a cache, loading the response functions already stored in the file.
+     *
+     * @param file file to store the response functions in, created on the first calibration
+     * @throws IOException if the file exists but couldn't be read
+     */
+    public CameraResponseCache(Path file) throws IOException {
+        this.file = file;
+        if (Files.exists(file)) {
+            try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                responses.load(reader);
+            }
+        }
+        logger.info("Opened camera response cache {} with {} cameras", file, responses.size());
+    }
+
+    /**
+     * Creates the key of the response function of the camera which shot the given series,
+     * calibrated with the given method on the given region of the images.
+     *
+     * The pixels of a warped receipt are a different population than those of a full photo,
+     * mostly paper, and interpolated, so a response calibrated on one isn't reused for the other.
+     *
+     * @param method calibration method, e.g. "debevec"
+     * @param region region of the images which is calibrated on
+     * @param exposures the bracketed series
+     * @return the key, or null if the metadata doesn't identify the camera and ISO of every image
+     */
+    public static String createKey(String method, HDRRegion region, List<Exposure> exposures) {
+        String make = null;
+        String model = null;
+        // A series is normally shot at a single ISO, but the response differs if not
+        TreeSet<Integer> isos = new TreeSet<>();
+        for (Exposure exposure : exposures) {
+            Metadata metadata = exposure.getMetadata();
+            if (metadata == null) {
+                return null;
+            }
+
+            ExifIFD0Directory camera = metadata.getFirstDirectoryOfType(ExifIFD0Directory.class);
+            ExifSubIFDDirectory settings = metadata.getFirstDirectoryOfType(ExifSubIFDDirectory.class);
+            if (camera == null || settings == null || !settings.containsTag(ExifSubIFDDirectory.TAG_ISO_EQUIVALENT)) {
+                return null;
+            }
+
+            String imageMake = camera.getString(ExifIFD0Directory.TAG_MAKE);
+            String imageModel = camera.getString(ExifIFD0Directory.TAG_MODEL);
+            if (imageMake == null || imageModel == null) {
+                return null;
+            }
+            imageMake = imageMake.trim();
+            imageModel = imageModel.trim();
+            if (make != null && (!make.equals(imageMake) || !model.equals(imageModel))) {
+                // Not a single camera's series
+                return null;
+            }
+            make = imageMake;
+            model = imageModel;
+            isos.add(settings.getInteger(ExifSubIFDDirectory.TAG_ISO_EQUIVALENT));
+        }
+
+        if (make == null) {
+            return null;
+        }
+        StringJoiner iso = new StringJoiner("+");
+        isos.forEach(value -> iso.add(value.toString()));
+        return String.format("%s/%s/%s/%s/iso%s", method, region.name().toLowerCase(Locale.ROOT), make, model, iso);
+    }
+
+    /**
+     * @param key key of the response function, see {@link #createKey}
+     * @return a copy of the response function, which the caller has to release, or null if not cached
+     */
+    public Mat get(String key) {
+        String value;
+        synchronized (this) {
+            value = responses.getProperty(key);
+        }
+        if (value == null) {
+            return null;
+        }
+
+        try {
+            return decode(value);
+        } catch (RuntimeException e) {
+            logger.warn("Discarding malformed camera response of {}", key, e);
+            return null;
+        }
+    }
+
+    /**
+     * Stores a calibrated response function, and writes the cache to its file.
+     *
+     * @param key key of the response function, see {@link #createKey}
+     * @param response the response function
+     */
+    public synchronized void put(String key, Mat response) {
+        responses.setProperty(key, encode(response));
+
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            // Written aside and moved, so a crash never leaves a truncated cache behind
+            try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                responses.store(writer, "Camera response functions by method/region/make/model/iso");
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.warn("Failed to store camera responses to {}", file, e);
+        }
+    }
+
+    /**
+     * Encodes a float Mat as "rows cols type value...".
+     */
+    static String encode(Mat response) {
+        float[] values = new float[(int) (response.total() * response.channels())];
+        response.get(0, 0, values);
+
+        StringBuilder encoded = new StringBuilder();
+        encoded.append(response.rows()).append(' ')
+                .append(response.cols()).append(' ')
+                .append(response.type());
+        for (float value : values) {
+            encoded.append(' ').append(value);
+        }
+        return encoded.toString();
+    }
+
+    static Mat decode(String encoded) {
+        String[] parts = encoded.trim().split(" ");
+        int rows = Integer.parseInt(parts[0]);
+        int cols = Integer.parseInt(parts[1]);
+        int type = Integer.parseInt(parts[2]);
+
+        Mat response = new Mat(rows, cols, type);
+        float[] values = new float[parts.length - 3];
+        if (values.length != response.total() * response.channels()) {
+            response.release();
+            throw new IllegalArgumentException(String.format(
+                    "Expected %d values, got %d", response.total() * response.channels(), values.length
+            ));
+        }
+        for (int i = 0; i < values.length; i++) {
+            values[i] = Float.parseFloat(parts[i + 3]);
+        }
+        response.put(0, 0, values);
+        return response;
+    }
+}
@@ -11,6 +11,15 @@ import java.util.stream.DoubleStream;
 
 public class ContrastDetector {
 
+    private static final int BUFFER_ALIGNMENT = 12;
+
+    /**
+     * Buffer which pixel data is bulk-read into. Re-used between calls to
+     * avoid allocating a new array per frame, which also means that an
+     * instance must not be shared between threads.
+     */
+    private byte[] pixelBuffer = new byte[0];
+
     /**
      * Computes a numeric value for an images contrast.
      *
@@ -18,6 +27,107 @@ public class ContrastDetector {
      * @return Numeric contrast value. Higher = more contrast; i.e. an image with all the same color =~0.
      */
     public double calculateContrast(Mat source) {
+        if (source.depth() != CvType.CV_8U) {
+            return calculateContrastFromDoubles(source);
+        }
+
+        final int channels = source.channels();
+        final int length = (int) source.total() * channels;
+        if (pixelBuffer.length < length || pixelBuffer.length % channels != 0) {
+            pixelBuffer = new byte[getBufferLength(length, channels)];
+        }
+        // A single JNI call instead of one per pixel. Mat.get copies
+        // row by row if the source isn't continuous (e.g. a submat),
+        // and never more than the source holds, i.e. `length` bytes.
+        source.get(0, 0, pixelBuffer);
+
+        // Channels are summed as integers, and only divided to the "average color"
+        // when needed. This gives the same values as averaging every pixel.
+        long pixelSum = 0;
+        int maxPixel = Integer.MIN_VALUE;
+        int minPixel = Integer.MAX_VALUE;
+        for (int i = 0; i < length; i += channels) {
+            int pixel = 0;
+            for (int channel = 0; channel < channels; channel++) {
+                pixel += pixelBuffer[i + channel] & 0xFF;
+            }
+            pixelSum += pixel;
+            maxPixel = Math.max(maxPixel, pixel);
+            minPixel = Math.min(minPixel, pixel);
+        }
+
+        if (pixelSum == 0) {
+            // All black image, avoid division by zero
+            return 0;
+        }
+
+        Size size = source.size();
+        double average = (double) pixelSum / channels / size.width / size.height;
+        return ((double) maxPixel / channels - (double) minPixel / channels) / average;
+    }
+
+    /**
+     * Mat.get requires the length of the buffer to be a multiple of the number of channels.
+     * Rounding up to a multiple of 12 fits all of 1 to 4 channels, so the buffer can be
+     * re-used when sources with another number of channels are analyzed.
+     *
+     * @param length number of bytes in the source
+     * @param channels number of channels of the source
+     * @return length of the buffer to allocate
+     */
+    private static int getBufferLength(int length, int channels) {
+        int rounded = (length + BUFFER_ALIGNMENT - 1) / BUFFER_ALIGNMENT * BUFFER_ALIGNMENT;
+        return rounded % channels == 0 ? rounded : length;
+    }
+
+    /**
+     * Computes the contrast of sources which isn't 8-bit, by converting
+     * them to doubles and reading all pixels at once.
+     *
+     * @param source Source to be analyzed.
+     * @return Numeric contrast value, see {@link #calculateContrast(Mat)}.
+     */
+    private double calculateContrastFromDoubles(Mat source) {
+        Mat converted = new Mat();
+        source.convertTo(converted, CvType.CV_64F);
+
+        final int channels = converted.channels();
+        double[] pixels = new double[(int) converted.total() * channels];
+        converted.get(0, 0, pixels);
+        converted.release();
+
+        double pixelSum = 0;
+        double maxPixel = Double.NEGATIVE_INFINITY;
+        double minPixel = Double.POSITIVE_INFINITY;
+        for (int i = 0; i < pixels.length; i += channels) {
+            double pixel = 0;
+            for (int channel = 0; channel < channels; channel++) {
+                pixel += pixels[i + channel];
+            }
+            pixel /= channels;
+            pixelSum += pixel;
+            maxPixel = Math.max(maxPixel, pixel);
+            minPixel = Math.min(minPixel, pixel);
+        }
+
+        if (pixelSum == 0) {
+            // All black image, avoid division by zero
+            return 0;
+        }
+
+        Size size = source.size();
+        return (maxPixel - minPixel) / (pixelSum / size.width / size.height);
+    }
+
+    /**
+     * Computes the contrast by reading every pixel separately. This is the
+     * original (slow) implementation, kept as a reference for regression tests
+     * and benchmarks.
+     *
+     * @param source Source to be analyzed.
+     * @return Numeric contrast value, see {@link #calculateContrast(Mat)}.
+     */
+    double calculateContrastPerPixel(Mat source) {
         List<Double> pixels = new ArrayList<>();
         for (int row = 0; row < source.rows(); row++) {
             for (int col = 0; col < source.cols(); col++) {
@@ -0,0 +1,162 @@
+package utilities;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.opencv.core.*;
+import org.opencv.imgproc.Imgproc;
+import org.opencv.video.Video;
+
+/**
+ * Finds the corners of a receipt in consecutive video frames. The corners are
+ * detected from scratch on a keyframe, and then followed to the next frames
+ * with sparse optical flow. Full detection is only done again when the tracked
+ * corners no longer form a valid box.
+ *
+ * Frames have to be given in the order they appear in the video. Not thread-safe.
+ */
+public class CornerTracker {
+
+    private static final Logger logger = LogManager.getLogger(CornerTracker.class);
+
+    private static final Size WINDOW_SIZE = new Size(21, 21);
+    private static final int MAX_PYRAMID_LEVEL = 3;
+
+    private final EdgeDetector edgeDetector;
+    private final BoxValidation boxValidation;
+    private final boolean detectGlare;
+
+    private Mat previousGray = null;
+
+    /**
+     * Copy of the corners in the previous frame, as the caller owns the returned corners.
+     */
+    private MatOfPoint2f previousCorners = null;
+
+    private int keyframes = 0;
+    private int trackedFrames = 0;
+
+    /**
+     * @param edgeDetector detector used on keyframes
+     * @param detectGlare Whether anti-glare methods should be automatically applied on keyframes
+     */
+    public CornerTracker(EdgeDetector edgeDetector, boolean detectGlare) {
+        this.edgeDetector = edgeDetector;
+        this.boxValidation = new BoxValidation();
+        this.detectGlare = detectGlare;
+    }
+
+    /**
+     * Finds the corners of the receipt in the next frame.
+     *
+     * @param frame the next frame of the video
+     * @return The corners of the receipt, counter-clockwise from the top right corner, which the caller
+     * has to release. Null if none found.
+     */
+    public MatOfPoint2f findCorners(Mat frame) {
+        Mat gray = new Mat();
+        Imgproc.cvtColor(frame, gray, Imgproc.COLOR_BGR2GRAY);
+
+        MatOfPoint2f corners = track(gray);
+        if (corners != null) {
+            trackedFrames++;
+        } else {
+            corners = edgeDetector.findCorners(frame, detectGlare);
+            keyframes++;
+        }
+
+        if (previousGray != null) {
+            previousGray.release();
+        }
+        previousGray = corners == null ? null : gray;
+        if (corners == null) {
+            gray.release();
+            releasePreviousCorners();
+        } else {
+            if (previousCorners == null) {
+                previousCorners = new MatOfPoint2f();
+            }
+            corners.copyTo(previousCorners);
+        }
+
+        return corners;
+    }
+
+    /**
+     * Follows the corners of the previous frame to the given frame.
+     *
+     * @param gray the next frame, in grayscale
+     * @return the tracked corners, or null if tracking failed
+     */
+    private MatOfPoint2f track(Mat gray) {
+        if (previousCorners == null || !previousGray.size().equals(gray.size())) {
+            return null;
+        }
+
+        MatOfPoint2f corners = new MatOfPoint2f();
+        MatOfByte status = new MatOfByte();
+        MatOfFloat error = new MatOfFloat();
+        Video.calcOpticalFlowPyrLK(
+                previousGray, gray, previousCorners, corners, status, error, WINDOW_SIZE, MAX_PYRAMID_LEVEL
+        );
+        error.release();
+        byte[] found = status.toArray();
+        status.release();
+
+        for (byte cornerFound : found) {
+            if (cornerFound == 0) {
+                logger.info("Lost track of a corner, detecting corners from scratch");
+                corners.release();
+                return null;
+            }
+        }
+
+        Rect bounds = new Rect(0, 0, gray.width(), gray.height());
+        for (Point corner : corners.toArray()) {
+            if (!bounds.contains(corner)) {
+                logger.info("Tracked corner left the frame, detecting corners from scratch");
+                corners.release();
+                return null;
+            }
+        }
+
+        if (!boxValidation.validateCornerAngles(corners)) {
+            logger.info("Tracked corners no longer form a valid box, detecting corners from scratch");
+            corners.release();
+            return null;
+        }
+
+        return corners;
+    }
+
+    private void releasePreviousCorners() {
+        if (previousCorners != null) {
+            previousCorners.release();
+            previousCorners = null;
+        }
+    }
+
+    /**
+     * @return number of frames where the corners were detected from scratch
+     */
+    public int getKeyframes() {
+        return keyframes;
+    }
+
+    /**
+     * @return number of frames where the corners were tracked from the previous frame
+     */
+    public int getTrackedFrames() {
+        return trackedFrames;
+    }
+
+    /**
+     * Releases the native memory held by the tracker.
+     */
+    public void release() {
+        if (previousGray != null) {
+            previousGray.release();
+            previousGray = null;
+        }
+        releasePreviousCorners();
+    }
+}
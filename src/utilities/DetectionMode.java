@@ -0,0 +1,17 @@
+package utilities;
+
+/**
+ * How the {@link EdgeDetector} searches for the corners of an object.
+ */
+public enum DetectionMode {
+    /**
+     * Search for the object's contour in the full resolution image.
+     */
+    FULL_RESOLUTION,
+
+    /**
+     * Search for the object's contour in a downscaled image, and only refine
+     * the found corners in the full resolution image.
+     */
+    MULTI_RESOLUTION
+}
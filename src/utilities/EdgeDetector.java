@@ -1,5 +1,8 @@
 package utilities;
 
+import metrics.Counter;
+import metrics.PipelineMetrics;
+import metrics.Stage;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.opencv.core.*;
@@ -27,11 +30,39 @@ public class EdgeDetector {
     private final int MAT_HEIGHT = 1000;
     private final int NUM_CORNERS = 4;
 
+    /**
+     * Size of the longest side of the image which the contour is searched
+     * in, when using {@link DetectionMode#MULTI_RESOLUTION}.
+     */
+    private static final double DETECTION_SIZE = 250;
+
+    /**
+     * Gray value from which pixels are considered saturated, and the fraction
+     * of the image which must be saturated before glare detection is attempted.
+     */
+    private static final double SATURATION_THRESHOLD = 250;
+    private static final double MIN_SATURATED_FRACTION = 0.001;
+
+    private static final int INPAINT_RADIUS = 5;
+    private static final int INPAINT_MARGIN = 2 * INPAINT_RADIUS;
+
+    private static final TermCriteria REFINE_CRITERIA =
+            new TermCriteria(TermCriteria.EPS + TermCriteria.COUNT, 30, 0.1);
+
     private final ContrastDetector contrastDetector;
     private final PolygonReducer polygonReducer;
     private final BoxValidation boxValidation;
+    private final DetectionMode mode;
 
     public EdgeDetector() {
+        this(DetectionMode.FULL_RESOLUTION);
+    }
+
+    /**
+     * @param mode how the corners of objects should be searched for
+     */
+    public EdgeDetector(DetectionMode mode) {
+        this.mode = mode;
         contrastDetector = new ContrastDetector();
         polygonReducer = new PolygonReducer();
         boxValidation = new BoxValidation();
@@ -46,17 +77,18 @@ public class EdgeDetector {
         double epsilon = percentage * arcLength(polygon, true);
 
         MatOfPoint2f approximation = null;
-        MatOfPoint2f lastPolygon = null;
+        MatOfPoint2f lastPolygon = polygon;
         for (int reduceCounter = 0; reduceCounter < 30; reduceCounter++) {
-            if (lastPolygon == null){
-                lastPolygon = polygon;
-            }
             // Simplify the found polygon to contain only the 4 corners.
             // This is a bit tricky, as we cannot directly specify how many points we WANT;
             // so we have to try with a few epsilon-values.
             approximation = new MatOfPoint2f();
             //Imgproc.approxPolyDP(polygon, approximation, polygon.total() * epsilonFactor, true);
             Imgproc.approxPolyDP(lastPolygon, approximation, epsilon, true);
+            if (lastPolygon != polygon) {
+                // Only the latest approximation is used from here on
+                lastPolygon.release();
+            }
 
             long points = approximation.total();
             if (points == NUM_CORNERS) {
@@ -81,14 +113,34 @@ public class EdgeDetector {
      * @return Points forming a polygon which encloses the biggest object in the image.
      */
     public MatOfPoint2f findBoundingBox(Mat source, boolean detectGlare) {
-        MatOfPoint2f boundingPolygon = new MatOfPoint2f(
-            findBoundingPolygon(source, detectGlare, false).toArray()
-        );
+        return findBoundingBox(source, null, detectGlare);
+    }
+
+    /**
+     * @param contrastSource image which the threshold is derived from, or null for the source itself
+     */
+    private MatOfPoint2f findBoundingBox(Mat source, Mat contrastSource, boolean detectGlare) {
+        MatOfPoint polygon;
+        try (MatScope scope = new MatScope(Stage.EDGE_DETECTION)) {
+            polygon = findBoundingPolygon(source, contrastSource, detectGlare, false, scope);
+        }
+        MatOfPoint2f boundingPolygon = new MatOfPoint2f(polygon.toArray());
+        polygon.release();
 
+        MatOfPoint2f corners =
+                PipelineMetrics.current().time(Stage.POLYGON_REDUCTION, () -> reduceToCorners(boundingPolygon));
+        boundingPolygon.release();
+        return corners;
+    }
+
+    private MatOfPoint2f reduceToCorners(MatOfPoint2f boundingPolygon) {
         MatOfPoint2f approximation = reducePolygon(boundingPolygon);
         if (approximation.total() > 4) {
             logger.info("Failed to reduce polygon to 4 points, attempting smart reduction.");
-            return polygonReducer.smartPolygonReduction(approximation);
+            PipelineMetrics.current().increment(Counter.SMART_REDUCTION_FALLBACKS);
+            MatOfPoint2f reduction = polygonReducer.smartPolygonReduction(approximation);
+            approximation.release();
+            return reduction;
         } else if (approximation.total() < 4) {
             logger.info("Too few corners in reduction, discarding");
         }
@@ -97,20 +149,88 @@ public class EdgeDetector {
             return approximation;
         }
 
+        approximation.release();
         return null;
     }
 
+    /**
+     * Checks whether the source contains enough saturated pixels to possibly
+     * contain a glare. This is far cheaper than the recursive glare detection,
+     * so images without any glare skip it entirely.
+     *
+     * @param source source to check
+     * @return whether a glare may be present
+     */
+    boolean hasSaturatedRegion(Mat source) {
+        Mat gray = new Mat();
+        cvtColor(source, gray, COLOR_BGR2GRAY);
+        threshold(gray, gray, SATURATION_THRESHOLD, 255, THRESH_BINARY);
+
+        int saturated = Core.countNonZero(gray);
+        gray.release();
+
+        logger.debug("Found {} saturated pixels", saturated);
+        return saturated >= source.total() * MIN_SATURATED_FRACTION;
+    }
+
+    /**
+     * Removes the content of the specified region in a content-aware way.
+     * Only a window around the region is inpainted, as pixels further away
+     * don't contribute to the result.
+     *
+     * @param source source to paint on
+     * @param glareRegion region to remove
+     */
+    private void removeGlare(Mat source, Rect glareRegion) {
+        if (glareRegion.area() <= 0) {
+            return;
+        }
+
+        int xMin = Math.max(glareRegion.x - INPAINT_MARGIN, 0);
+        int yMin = Math.max(glareRegion.y - INPAINT_MARGIN, 0);
+        int xMax = Math.min(glareRegion.x + glareRegion.width + INPAINT_MARGIN, source.width());
+        int yMax = Math.min(glareRegion.y + glareRegion.height + INPAINT_MARGIN, source.height());
+        Rect window = new Rect(xMin, yMin, xMax - xMin, yMax - yMin);
+
+        // Create a mask which masks out only the parts in the glare bounding box,
+        // relative to the window.
+        Mat mask = Mat.zeros(window.size(), CV_8U);
+        Rect maskedRegion = new Rect(glareRegion.x - xMin, glareRegion.y - yMin, glareRegion.width, glareRegion.height);
+        mask.submat(maskedRegion).setTo(new Scalar(255));
+
+        // "Stretch" the content in the bounding box in a content-aware way.
+        // Think of it as a content aware/smart removal. The window shares its
+        // data with the source, so the result is written back into it.
+        Mat roi = source.submat(window);
+        inpaint(roi, mask, roi, INPAINT_RADIUS, Photo.INPAINT_TELEA);
+
+        roi.release();
+        mask.release();
+    }
+
     MatOfPoint findBoundingPolygon(Mat _source, boolean detectGlare, boolean recursiveCall) {
+        try (MatScope scope = new MatScope(Stage.EDGE_DETECTION)) {
+            // The returned polygon is kept, everything else is released
+            return findBoundingPolygon(_source, null, detectGlare, recursiveCall, scope);
+        }
+    }
+
+    /**
+     * @param contrastSource image which the threshold is derived from, or null for the source itself.
+     *                       The threshold fit is calibrated on full resolution frames, whose contrast
+     *                       is higher than the contrast of a downscaled copy.
+     */
+    private MatOfPoint findBoundingPolygon(Mat _source, Mat contrastSource, boolean detectGlare,
+                                          boolean recursiveCall, MatScope scope) {
         // If we're detecting glares, we may paint on the specified source
         // which actually is a clone.
-        Mat source = recursiveCall ? _source : _source.clone();
+        Mat source = recursiveCall ? _source : scope.track(_source.clone());
 
-        if (detectGlare && ! recursiveCall) {
-            // @todo Do not use this flag blindly, do some own detection?
+        if (detectGlare && ! recursiveCall && hasSaturatedRegion(source)) {
             // @todo Improve hit-ratio of the glare-detection. Sketchy at best right now.
             // Detect glare recursively by using stricter thresholds. This call
             // won't result in another recursion level.
-            final MatOfPoint glarePolygon = findBoundingPolygon(source, false, true);
+            final MatOfPoint glarePolygon = scope.track(findBoundingPolygon(source, false, true));
 
             // By drawing the glare's bounding box on the image clone, the following
             // steps require less strict thresholds.
@@ -141,31 +261,16 @@ public class EdgeDetector {
                 yMax = source.height();
             }
 
-            // Create a mask which masks out only the parts in the glare bounding box.
-            Mat mask = new Mat(source.rows(), source.cols(), CV_8U);
-            for (int x = xMin; x < xMax; x++) {
-                for (int y = yMin; y < yMax; y++) {
-                    mask.put(y, x, 255, 255, 255);
-                }
-            }
-
-            // "Stretch" the content in the bounding box in a content-aware way.
-            // Think of it as a content aware/smart removal.
-            inpaint(source, mask, source, 5, Photo.INPAINT_TELEA);
-
-            // @todo Remove
-//            List<MatOfPoint> contours = new ArrayList<>();
-//            contours.add(glarePolygon);
-//            Imgproc.drawContours(source, contours, 0, new Scalar(255, 0, 0), 2, 8, new Mat(), 0, new Point());
+            removeGlare(source, new Rect(xMin, yMin, xMax - xMin, yMax - yMin));
         }
 
         // Convert to black and white
-        Mat blackWhite = new Mat();
+        Mat blackWhite = scope.newMat(source.size(), CV_8U);
         cvtColor(source, blackWhite, COLOR_BGR2GRAY);
 
         // Apply threshold
-        Mat threshOut = new Mat();
-        int thresh = findThresholdValue(source);
+        Mat threshOut = scope.newMat(source.size(), CV_8U);
+        int thresh = findThresholdValue(contrastSource != null ? contrastSource : source);
         if (! detectGlare && recursiveCall) {
             // We're detecting glares; which requires a far stricter threshold.
             thresh *= 2;
@@ -175,7 +280,8 @@ public class EdgeDetector {
 
         threshold(blackWhite, threshOut, thresh, 255, THRESH_BINARY);
         List<MatOfPoint> contours = new ArrayList<>();
-        Imgproc.findContours(threshOut, contours, new Mat(), Imgproc.RETR_LIST, Imgproc.CHAIN_APPROX_SIMPLE);
+        Imgproc.findContours(threshOut, contours, scope.newMat(), Imgproc.RETR_LIST, Imgproc.CHAIN_APPROX_SIMPLE);
+        scope.trackAll(contours);
 
         // Find contour with biggest area
         MatOfPoint maxContour = null;
@@ -192,34 +298,82 @@ public class EdgeDetector {
         if (maxContour == null) {
             // No contour found (one colored image?). Hence, the original image is already bounded.
             Size size = source.size();
-            return new MatOfPoint(
+            return scope.keep(new MatOfPoint(
                     new Point(0, 0),
                     new Point(size.width, 0),
                     new Point(size.width, size.height),
                     new Point(0, size.height)
-            );
+            ));
         }
 
         if (detectGlare) {
             // Simplify the found contour, which eventually removes
             // extreme points caused by glare.
-            MatOfPoint2f contour2f = new MatOfPoint2f(maxContour.toArray());
+            MatOfPoint2f contour2f = scope.track(new MatOfPoint2f(maxContour.toArray()));
             approxPolyDP(contour2f, contour2f, 150, true);
-            return new MatOfPoint(contour2f.toArray());
+            return scope.keep(new MatOfPoint(contour2f.toArray()));
         }
 
-        return maxContour;
+        return scope.keep(maxContour);
     }
 
     /**
-     * Finds a polygon surrounding the biggest object in the image.
+     * Finds the four corners of the biggest object in the image.
      *
      * @param source Source to analyze
      * @param detectGlare Whether anti-glare methods should be automatically applied
-     * @return Points forming a polygon which encloses the biggest object in the image.
+     * @return The corners of the object, counter-clockwise from the top right corner. Null if no valid object found.
      */
-    private Mat getCornerMat(Mat source, boolean detectGlare) {
-        MatOfPoint2f approxCurve = findBoundingBox(source, detectGlare);
+    public MatOfPoint2f findCorners(Mat source, boolean detectGlare) {
+        // The glare detection uses margins in full resolution pixels
+        if (mode == DetectionMode.MULTI_RESOLUTION && !detectGlare) {
+            return findCornersMultiResolution(source);
+        }
+        return findCornersFullResolution(source, null, detectGlare);
+    }
+
+    /**
+     * Finds the corners in a downscaled copy of the source, and then refines
+     * each corner in a small window of the full resolution source.
+     *
+     * @param source Source to analyze
+     * @return The corners of the object, counter-clockwise from the top right corner. Null if no valid object found.
+     */
+    private MatOfPoint2f findCornersMultiResolution(Mat source) {
+        double factor = Math.max(source.width(), source.height()) / DETECTION_SIZE;
+        if (factor <= 1) {
+            return findCornersFullResolution(source, null, false);
+        }
+
+        Mat scaled = new Mat();
+        resize(source, scaled, new Size(source.width() / factor, source.height() / factor), 0, 0, INTER_AREA);
+        // The contour is searched in the downscaled copy, with the threshold of the full resolution source
+        MatOfPoint2f corners = findCornersFullResolution(scaled, source, false);
+        scaled.release();
+        if (corners == null) {
+            return null;
+        }
+
+        Point[] points = corners.toArray();
+        for (Point point : points) {
+            point.x = Math.min(point.x * factor, source.width() - 1);
+            point.y = Math.min(point.y * factor, source.height() - 1);
+        }
+        corners.fromArray(points);
+
+        // A pixel in the downscaled image covers `factor` pixels in the source,
+        // so the refinement has to search at least that far.
+        int halfWindow = (int) Math.ceil(2 * factor);
+        Mat gray = new Mat();
+        cvtColor(source, gray, COLOR_BGR2GRAY);
+        cornerSubPix(gray, corners, new Size(halfWindow, halfWindow), new Size(-1, -1), REFINE_CRITERIA);
+        gray.release();
+
+        return corners;
+    }
+
+    private MatOfPoint2f findCornersFullResolution(Mat source, Mat contrastSource, boolean detectGlare) {
+        MatOfPoint2f approxCurve = findBoundingBox(source, contrastSource, detectGlare);
         if (approxCurve == null) {
             return null;
         }
@@ -230,11 +384,12 @@ public class EdgeDetector {
             Point p = new Point(coordinates[0], coordinates[1]);
             points.add(p);
         }
+        approxCurve.release();
 
         return createOrderedCornerMat(points);
     }
 
-    private Mat createOrderedCornerMat(List<Point> points) {
+    private MatOfPoint2f createOrderedCornerMat(List<Point> points) {
         Point topLeft, topRight, bottomLeft, bottomRight;
 
         // Sort by y-axis ascending, the two points with lowest y are our
@@ -272,7 +427,7 @@ public class EdgeDetector {
         corners.add(bottomLeft);
         corners.add(bottomRight);
 
-        return Converters.vector_Point2f_to_Mat(corners);
+        return new MatOfPoint2f(corners.toArray(new Point[NUM_CORNERS]));
     }
 
     /**
@@ -283,11 +438,24 @@ public class EdgeDetector {
      * @return A new Mat, consisting only of the found object.
      */
     public Mat extractBiggestObject(Mat source, boolean detectGlare) {
-        Mat mat = getCornerMat(source, detectGlare);
-        if (mat == null) {
+        MatOfPoint2f corners = findCorners(source, detectGlare);
+        if (corners == null) {
             return null;
         }
-        return skew(source, mat);
+        Mat object = extractObject(source, corners);
+        corners.release();
+        return object;
+    }
+
+    /**
+     * Extracts the object with the given corners, automatically skewing the result.
+     *
+     * @param source Source to extract from
+     * @param corners Corners of the object, counter-clockwise from the top right corner. See {@link #findCorners}.
+     * @return A new Mat, consisting only of the object.
+     */
+    public Mat extractObject(Mat source, MatOfPoint2f corners) {
+        return skew(source, corners);
     }
 
     private int findThresholdValue(Mat source) {
@@ -307,8 +475,8 @@ public class EdgeDetector {
      * @return A skewed mat according to where the corner points were.
      */
     private Mat skew(Mat imgSrc, Mat start) {
-        //Set the mat to a standard size to make sure all images get the same size.
-        Mat out = new Mat(MAT_WIDTH, MAT_HEIGHT, CvType.CV_8UC1);
+        // Allocated by warpPerspective, with the standard size, so all images get the same size.
+        Mat out = new Mat();
 
         Point p1 = new Point(MAT_WIDTH, 0);
         Point p2 = new Point(0, 0);
@@ -320,6 +488,8 @@ public class EdgeDetector {
 
         Mat perspectiveTransform = Imgproc.getPerspectiveTransform(start, end);
         Imgproc.warpPerspective(imgSrc, out, perspectiveTransform, new Size(MAT_WIDTH, MAT_HEIGHT), Imgproc.INTER_CUBIC);
+        end.release();
+        perspectiveTransform.release();
 
         return out;
     }
@@ -0,0 +1,47 @@
+package utilities;
+
+import com.drew.metadata.Metadata;
+import org.opencv.core.Mat;
+
+/**
+ * One image of a bracketed series, with the metadata read from the same file.
+ */
+public class Exposure {
+
+    private final String path;
+    private final Mat image;
+    private final float exposureTime;
+    private final Metadata metadata;
+
+    Exposure(String path, Mat image, float exposureTime, Metadata metadata) {
+        this.path = path;
+        this.image = image;
+        this.exposureTime = exposureTime;
+        this.metadata = metadata;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * @return the decoded image, empty if the file couldn't be decoded
+     */
+    public Mat getImage() {
+        return image;
+    }
+
+    /**
+     * @return exposure time in seconds, or -1 if unknown
+     */
+    public float getExposureTime() {
+        return exposureTime;
+    }
+
+    /**
+     * @return the metadata of the image, or null if it couldn't be read
+     */
+    public Metadata getMetadata() {
+        return metadata;
+    }
+}
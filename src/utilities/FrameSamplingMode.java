@@ -0,0 +1,23 @@
+package utilities;
+
+/**
+ * How frames are sampled from a video by the {@link VideoSplitter}.
+ */
+public enum FrameSamplingMode {
+    /**
+     * Seek to every sampled frame. Each seek forces the decoder back to the
+     * previous keyframe, so this is only cheap when samples are far apart.
+     */
+    SEEK,
+
+    /**
+     * Decode the video forward once, only retrieving the sampled frames.
+     */
+    SEQUENTIAL,
+
+    /**
+     * Select between {@link #SEEK} and {@link #SEQUENTIAL} based on the
+     * length of the video and how many frames are sampled.
+     */
+    AUTOMATIC
+}
@@ -6,13 +6,29 @@ import org.apache.logging.log4j.Logger;
 import org.opencv.core.Core;
 import org.opencv.core.CvType;
 import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint2f;
 import org.opencv.core.Scalar;
-import org.opencv.imgcodecs.Imgcodecs;
 import org.opencv.photo.*;
 import org.opencv.utils.Converters;
 
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static org.opencv.photo.Photo.*;
 
@@ -28,104 +44,408 @@ public class HDRCreator {
     private static final String ROBERTSON = "robertson";
     private static final String MERTENS = "mertens";
 
-    private static final EdgeDetector edgeDetector = new EdgeDetector();
-
+    /**
+     * Maximum number of images decoded at once.
+     */
+    private static final int LOADER_THREADS = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Time all methods have to finish in when comparing them.
+     */
+    private static final long DEFAULT_DEADLINE_SECONDS = 300;
+
+    // Edge detectors aren't thread-safe, and HDR images may be created concurrently, hence one per thread
+    private static final ThreadLocal<EdgeDetector> edgeDetector = ThreadLocal.withInitial(EdgeDetector::new);
+
+    /**
+     * Finds the receipt before merging, in a full resolution photo.
+     */
+    private static final ThreadLocal<EdgeDetector> receiptDetector =
+            ThreadLocal.withInitial(() -> new EdgeDetector(DetectionMode.MULTI_RESOLUTION));
+
+    /**
+     * Merges the bracketed images of the directory with every method, concurrently.
+     *
+     * @param directory directory of the bracketed images
+     * @return the merged images in the order Debevec, Robertson, Mertens, with null in place of
+     * the methods which failed or didn't finish within {@value #DEFAULT_DEADLINE_SECONDS} seconds
+     * @see #createHDR(String, long, TimeUnit)
+     */
     public static List<Mat> createHDR(String directory){
-        List<String>  imagePaths = ImageReader.readImages(directory);
-        List<Mat> imageMats = new ArrayList<>();
+        return inMethodOrder(createHDR(directory, DEFAULT_DEADLINE_SECONDS, TimeUnit.SECONDS));
+    }
+
+    /**
+     * @param mergedImages merged images by method, see {@link #createHDR(String, long, TimeUnit)}
+     * @return the merged images in the order Debevec, Robertson, Mertens, with null in place of missing methods
+     */
+    static List<Mat> inMethodOrder(Map<String, Mat> mergedImages) {
+        // Every method keeps its index, even if it was skipped
+        return Stream.of(DEBEVEC, ROBERTSON, MERTENS)
+                .map(mergedImages::get)
+                .collect(Collectors.toList());
+    }
 
-        for (String imagePath : imagePaths) {
-            imageMats.add(Imgcodecs.imread(imagePath));
+    /**
+     * Merges the bracketed images of the directory with every method. The methods run as
+     * concurrent tasks over the same images; those not finished when the deadline passes are
+     * cancelled and skipped. Returns at the deadline; a cancelled method finishes its current
+     * native step in the background, and the last one to stop releases the images.
+     *
+     * @param directory directory of the bracketed images
+     * @param timeout time all methods have to finish in
+     * @param unit unit of the timeout
+     * @return the merged image by method, in the order Debevec, Robertson, Mertens, without the cancelled methods
+     */
+    public static Map<String, Mat> createHDR(String directory, long timeout, TimeUnit unit){
+        List<Exposure> exposures = readExposures(directory);
+        List<Mat> imageMats = getImages(exposures);
+        List<Float> exposureTimes = getExposureTimes(exposures);
+
+        // The images and times are only read by the methods, hence shared
+        Map<String, Callable<Mat>> methods = new LinkedHashMap<>();
+        methods.put(DEBEVEC, () -> createHDRDebevec(exposureTimes , imageMats, null, null));
+        methods.put(ROBERTSON, () -> createHDRRobertson(exposureTimes , imageMats, null, null));
+        methods.put(MERTENS, () -> createMertensFusion(imageMats));
+
+        // The result of every method, also of those which finish after being cancelled
+        AtomicReferenceArray<Mat> results = new AtomicReferenceArray<>(methods.size());
+        List<Callable<Mat>> tasks = new ArrayList<>();
+        for (Callable<Mat> method : methods.values()) {
+            int index = tasks.size();
+            tasks.add(() -> {
+                Mat result = method.call();
+                results.set(index, result);
+                return result;
+            });
         }
 
-        List<Float> exposureTimes = ImageReader.getExposureTimes(imagePaths);
+        ExecutorService executor = Executors.newFixedThreadPool(methods.size());
+        List<Future<Mat>> futures;
+        try {
+            // Cancels the methods which haven't finished by the deadline
+            futures = executor.invokeAll(tasks, timeout, unit);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            executor.shutdownNow();
+            releaseWhenTerminated(executor, imageMats, results, null);
+            return new LinkedHashMap<>();
+        }
+        executor.shutdown();
+
+        Map<String, Mat> mergedImages = new LinkedHashMap<>();
+        boolean cancelled = false;
+        Iterator<String> names = methods.keySet().iterator();
+        for (Future<Mat> future : futures) {
+            String name = names.next();
+            if (future.isCancelled()) {
+                logger.warn("Skipping {}, not finished within {} {}", name, timeout, unit);
+                cancelled = true;
+                continue;
+            }
+            try {
+                mergedImages.put(name, future.get());
+            } catch (ExecutionException e) {
+                logger.warn("Skipping {}, failed", name, e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
 
-        List<Mat> mergedImages = new ArrayList<>();
+        if (cancelled) {
+            // Not waiting for the cancelled methods, which only stop at their next checkpoint
+            releaseWhenTerminated(executor, imageMats, results, futures);
+        } else {
+            release(imageMats);
+        }
+        return mergedImages;
+    }
 
-        mergedImages.add(createHDRDebevec(exposureTimes , imageMats));
+    /**
+     * Releases the images, and the results of the cancelled methods, once the workers of the
+     * shut down executor have stopped. Waits on a background thread, not to hold up the caller.
+     *
+     * @param executor the shut down executor of the methods
+     * @param images images which the methods read
+     * @param results result of every method, as far as it finished
+     * @param futures futures of the methods, or null if all results are discarded
+     */
+    private static void releaseWhenTerminated(ExecutorService executor, List<Mat> images,
+                                              AtomicReferenceArray<Mat> results, List<Future<Mat>> futures) {
+        Thread releaser = new Thread(() -> {
+            awaitTermination(executor);
+            release(images);
+            for (int i = 0; i < results.length(); i++) {
+                Mat result = results.get(i);
+                if (result != null && (futures == null || futures.get(i).isCancelled())) {
+                    result.release();
+                }
+            }
+        }, "hdr-release");
+        releaser.setDaemon(true);
+        releaser.start();
+    }
 
-        mergedImages.add(createHDRRobertson(exposureTimes , imageMats));
+    /**
+     * Waits for the workers of a shut down executor to finish their current task,
+     * even if the waiting thread is interrupted, which is restored afterwards.
+     */
+    private static void awaitTermination(ExecutorService executor) {
+        boolean interrupted = false;
+        while (!executor.isTerminated()) {
+            try {
+                executor.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
 
-        mergedImages.add(createMertensFusion(imageMats));
+    public static Mat createHDR(String directory, String method){
+        return createHDR(directory, method, null);
+    }
 
-        return mergedImages;
+    /**
+     * Merges the bracketed images of the directory and extracts the receipt from the result.
+     *
+     * @param directory directory of the bracketed images
+     * @param method "debevec", "robertson" or "mertens"
+     * @param responseCache cache of camera response functions, or null to always calibrate
+     * @return the receipt, or an empty Mat for an unknown method
+     */
+    public static Mat createHDR(String directory, String method, CameraResponseCache responseCache){
+        return createHDR(directory, method, responseCache, HDRRegion.FULL_IMAGE);
     }
 
-    public static Mat createHDR(String directory, String method){
+    /**
+     * Merges the bracketed images of the directory and extracts the receipt from the result.
+     *
+     * @param directory directory of the bracketed images
+     * @param method "debevec", "robertson" or "mertens"
+     * @param responseCache cache of camera response functions, or null to always calibrate
+     * @param region which part of the images to merge
+     * @return the receipt, or an empty Mat for an unknown method
+     */
+    public static Mat createHDR(String directory, String method, CameraResponseCache responseCache,
+                                HDRRegion region){
         logger.info("Creating HDR image");
-        logger.info("Loading images");
-        List<String>  imagePaths = ImageReader.readImages(directory);
-        List<Mat> imageMats = new ArrayList<>();
-
-        for (String imagePath : imagePaths) {
-            imageMats.add(Imgcodecs.imread(imagePath));
+        logger.info("Loading images and exposure times");
+        List<Exposure> exposures = readExposures(directory);
+        List<Mat> imageMats = getImages(exposures);
+
+        boolean extracted = false;
+        if (region == HDRRegion.RECEIPT) {
+            List<Mat> receipts = warpToReceipt(exposures);
+            if (receipts != null) {
+                release(imageMats);
+                imageMats = receipts;
+                extracted = true;
+            }
         }
 
         if(method.equals(MERTENS)) {
             logger.info("Creating Mertens fusion");
             Mat mertens = createMertensFusion(imageMats);
-            logger.info("Skewing image");
-            Mat result = new Mat();
-            mertens.assignTo(result, CvType.CV_8U);
-            return edgeDetector.extractBiggestObject(result, false);
-        }   
+            release(imageMats);
+            return toReceipt(mertens, extracted);
+        }
 
-        logger.info("Reading exposure times from images");
-        List<Float> exposureTimes = ImageReader.getExposureTimes(imagePaths);
+        List<Float> exposureTimes = getExposureTimes(exposures);
+        // The images which are actually calibrated on, as the receipt may not have been found
+        HDRRegion calibrationRegion = extracted ? HDRRegion.RECEIPT : HDRRegion.FULL_IMAGE;
 
         if(method.equals(DEBEVEC)) {
             logger.info("Creating HDR from Debevec algorithm");
-            Mat debevec = createHDRDebevec(exposureTimes , imageMats);
-            logger.info("Skewing image");
-            Mat result = new Mat();
-            debevec.assignTo(result, CvType.CV_8U);
-            return edgeDetector.extractBiggestObject(result, false);
+            Mat debevec = createHDRDebevec(exposureTimes , imageMats, responseCache,
+                    CameraResponseCache.createKey(DEBEVEC, calibrationRegion, exposures));
+            release(imageMats);
+            return toReceipt(debevec, extracted);
         }
 
         if(method.equals(ROBERTSON)) {
             logger.info("Creating HDR from Robertson algorithm");
-            Mat robertson = createHDRRobertson(exposureTimes , imageMats);
-            logger.info("Skewing image");
-            Mat result = new Mat();
-            robertson.assignTo(result, CvType.CV_8U);
-            return edgeDetector.extractBiggestObject(result, false);
+            Mat robertson = createHDRRobertson(exposureTimes , imageMats, responseCache,
+                    CameraResponseCache.createKey(ROBERTSON, calibrationRegion, exposures));
+            release(imageMats);
+            return toReceipt(robertson, extracted);
         }
 
+        release(imageMats);
         return new Mat();
     }
 
-    private static Mat createHDRDebevec(List<Float> times, List<Mat> src) {
+    /**
+     * Decodes the images of the directory and their exposure times, a few at a time.
+     *
+     * @param directory directory of the bracketed images
+     * @return the exposures, in name order
+     */
+    private static List<Exposure> readExposures(String directory) {
+        ExecutorService executor = Executors.newFixedThreadPool(LOADER_THREADS);
+        // A series is a single directory; anything nested in it isn't part of it
+        try (Stream<Path> images = ImageReader.streamImages(Paths.get(directory), 1)) {
+            return ImageReader.readExposures(images, executor);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static List<Mat> getImages(List<Exposure> exposures) {
+        return exposures.stream().map(Exposure::getImage).collect(Collectors.toList());
+    }
+
+    private static List<Float> getExposureTimes(List<Exposure> exposures) {
+        return exposures.stream().map(Exposure::getExposureTime).collect(Collectors.toList());
+    }
+
+    /**
+     * Finds the receipt in the exposure with the median exposure time, which is the
+     * most likely to be neither under- nor overexposed, and warps every exposure to
+     * the receipt in that exposure. The images are taken from a tripod or a steady
+     * hand, so the receipt is at the same place in all of them.
+     *
+     * @param exposures the bracketed series
+     * @return the warped exposures, in the same order, or null if no receipt was found
+     */
+    static List<Mat> warpToReceipt(List<Exposure> exposures) {
+        if (exposures.isEmpty()) {
+            return null;
+        }
+        List<Exposure> byExposureTime = new ArrayList<>(exposures);
+        byExposureTime.sort(Comparator.comparingDouble(Exposure::getExposureTime));
+        Exposure reference = byExposureTime.get(byExposureTime.size() / 2);
+
+        logger.info("Finding receipt in {}", reference.getPath());
+        EdgeDetector detector = receiptDetector.get();
+        MatOfPoint2f corners = detector.findCorners(reference.getImage(), false);
+        if (corners == null) {
+            logger.warn("No receipt found in {}, merging the full images", reference.getPath());
+            return null;
+        }
+
+        logger.info("Warping images to the receipt");
+        List<Mat> receipts = exposures.stream()
+                .map(exposure -> detector.extractObject(exposure.getImage(), corners))
+                .collect(Collectors.toList());
+        corners.release();
+        return receipts;
+    }
+
+    /**
+     * @param merged merged image, which is released
+     * @param extracted whether the images were already warped to the receipt before merging
+     * @return the receipt
+     */
+    private static Mat toReceipt(Mat merged, boolean extracted) {
+        Mat result = new Mat();
+        merged.assignTo(result, CvType.CV_8U);
+        merged.release();
+        if (extracted) {
+            return result;
+        }
+
+        logger.info("Skewing image");
+        Mat receipt = edgeDetector.get().extractBiggestObject(result, false);
+        result.release();
+        return receipt;
+    }
+
+    private static void release(List<Mat> mats) {
+        for (Mat mat : mats) {
+            mat.release();
+        }
+    }
+
+    private static Mat createHDRDebevec(List<Float> times, List<Mat> src,
+                                        CameraResponseCache responseCache, String cameraKey) {
 
         Mat timeMat = floatToMat(times);
 
-        logger.info("Calibrating camera response function");
-        Mat crf = new Mat();
-        CalibrateDebevec calibrateDebevec = createCalibrateDebevec();
-        calibrateDebevec.process(src, crf, timeMat);
+        Mat crf = calibrate(createCalibrateDebevec(), src, timeMat, responseCache, cameraKey);
+        checkCancelled(timeMat, crf);
 
         logger.info("Merging images to one HDR");
         Mat hdr = new Mat();
         MergeDebevec merge_debevec = createMergeDebevec();
         merge_debevec.process(src, hdr, timeMat, crf);
-
-        return toneMapImage(hdr, GAMMA_CORRECTION_DEFAULT);
+        timeMat.release();
+        crf.release();
+        checkCancelled(hdr);
+
+        Mat toneMapped = toneMapImage(hdr, GAMMA_CORRECTION_DEFAULT);
+        hdr.release();
+        checkCancelled(toneMapped);
+        return toneMapped;
     }
 
-    private static Mat createHDRRobertson(List<Float> times, List<Mat> src) {
+    private static Mat createHDRRobertson(List<Float> times, List<Mat> src,
+                                          CameraResponseCache responseCache, String cameraKey) {
 
         Mat timeMat = floatToMat(times);
 
-        logger.info("Calibrating camera response function");
-        Mat crf = new Mat();
-        CalibrateRobertson calibrateRobertson = createCalibrateRobertson();
-        calibrateRobertson.process(src, crf, timeMat);
+        Mat crf = calibrate(createCalibrateRobertson(), src, timeMat, responseCache, cameraKey);
+        checkCancelled(timeMat, crf);
 
         logger.info("Merging images to one HDR");
         Mat hdr = new Mat();
         MergeRobertson merge_robertson = createMergeRobertson();
         merge_robertson.process(src, hdr, timeMat, crf);
+        timeMat.release();
+        crf.release();
+        checkCancelled(hdr);
+
+        Mat toneMapped = toneMapImage(hdr, GAMMA_CORRECTION_ROBERTSON);
+        hdr.release();
+        checkCancelled(toneMapped);
+        return toneMapped;
+    }
+
+    /**
+     * Finds the camera response function, calibrating it only if the camera isn't cached.
+     *
+     * @param calibrator calibration method
+     * @param src the bracketed images
+     * @param timeMat exposure times of the images
+     * @param responseCache cache of response functions, or null to always calibrate
+     * @param cameraKey key of the camera in the cache, or null if the camera is unknown
+     * @return the camera response function
+     */
+    private static Mat calibrate(CalibrateCRF calibrator, List<Mat> src, Mat timeMat,
+                                 CameraResponseCache responseCache, String cameraKey) {
+        boolean cacheable = responseCache != null && cameraKey != null;
+        if (cacheable) {
+            Mat cached = responseCache.get(cameraKey);
+            if (cached != null) {
+                logger.info("Using cached camera response function of {}", cameraKey);
+                return cached;
+            }
+        }
 
-        return toneMapImage(hdr, GAMMA_CORRECTION_ROBERTSON);
+        logger.info("Calibrating camera response function");
+        Mat crf = new Mat();
+        calibrator.process(src, crf, timeMat);
+        if (cacheable) {
+            responseCache.put(cameraKey, crf);
+        }
+        return crf;
+    }
+
+    /**
+     * Stops a method which has been cancelled, once its current native step is done.
+     * Native steps themselves can't be interrupted.
+     *
+     * @param intermediates Mats of the method to release if it's cancelled
+     */
+    private static void checkCancelled(Mat... intermediates) {
+        if (Thread.currentThread().isInterrupted()) {
+            for (Mat intermediate : intermediates) {
+                intermediate.release();
+            }
+            throw new CancellationException("HDR method cancelled");
+        }
     }
 
     private static Mat floatToMat(List<Float> list) {
@@ -136,9 +456,12 @@ public class HDRCreator {
         Mat fusion = new Mat();
         MergeMertens mergeMertens = createMergeMertens();
         mergeMertens.process(images, fusion);
+        checkCancelled(fusion);
 
         Mat result = new Mat();
         Core.multiply(fusion, MULTIPLIER, result);
+        fusion.release();
+        checkCancelled(result);
 
         return result;
     }
@@ -150,6 +473,7 @@ public class HDRCreator {
         tonemapDurand.process(src, toneMap);
         Mat result = new Mat();
         Core.multiply(toneMap, MULTIPLIER, result);
+        toneMap.release();
 
         return result;
     }
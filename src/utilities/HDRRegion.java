@@ -0,0 +1,18 @@
+package utilities;
+
+/**
+ * Which part of the bracketed images the {@link HDRCreator} merges.
+ */
+public enum HDRRegion {
+    /**
+     * Merge the full images, then extract the receipt from the result.
+     */
+    FULL_IMAGE,
+
+    /**
+     * Find the receipt in one of the images, and warp every image to the
+     * size of the extracted receipt before merging. Merging then only
+     * processes the receipt's pixels, a fraction of a full photo.
+     */
+    RECEIPT
+}
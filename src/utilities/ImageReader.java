@@ -6,20 +6,54 @@ import com.drew.metadata.Metadata;
 import com.drew.metadata.exif.ExifSubIFDDirectory;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.imgcodecs.Imgcodecs;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 public class ImageReader {
 
     private static final Logger logger = LogManager.getLogger(ImageReader.class);
 
+    /**
+     * Depth of {@link #streamImages} which searches every subdirectory.
+     */
+    public static final int UNLIMITED_DEPTH = Integer.MAX_VALUE;
+
+    private static final Set<String> IMAGE_EXTENSIONS = new HashSet<>(Arrays.asList(
+            "jpg", "jpeg", "png", "tif", "tiff", "bmp"
+    ));
+
+    /**
+     * Leading bytes of the image formats, by format.
+     */
+    private static final byte[][] MAGIC_NUMBERS = {
+            {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF},            // JPEG
+            {(byte) 0x89, 'P', 'N', 'G'},                       // PNG
+            {'I', 'I', '*', 0},                                 // TIFF, little endian
+            {'M', 'M', 0, '*'},                                 // TIFF, big endian
+            {'B', 'M'}                                          // BMP
+    };
 
     public static List<String> readImages(String directory){
         List<String> filePaths = new ArrayList<>();
@@ -35,6 +69,74 @@ public class ImageReader {
         return filePaths;
     }
 
+    /**
+     * Lists the images in a directory and its subdirectories. Entries are visited in name order,
+     * and a subdirectory is visited at the position of its name, so the order is the same on every
+     * file system. To sort them, the entries of a directory are all listed before the first one is
+     * emitted; only the subdirectories are listed lazily, once the stream reaches them.
+     *
+     * Files are only filtered by their extension here, without reading them. Whether their content
+     * is an image is checked when they are decoded, see {@link #readExposures(Stream, Executor)}.
+     *
+     * @param directory directory to search
+     * @param maxDepth number of directory levels to search, 1 to only search the directory itself,
+     *                 or {@link #UNLIMITED_DEPTH}
+     * @return the images. Unreadable directories are skipped.
+     */
+    public static Stream<Path> streamImages(Path directory, int maxDepth) {
+        return walk(directory, maxDepth).filter(ImageReader::hasImageExtension);
+    }
+
+    private static Stream<Path> walk(Path directory, int depth) {
+        List<Path> entries = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            stream.forEach(entries::add);
+        } catch (IOException e) {
+            logger.warn("Failed to list {}", directory, e);
+            return Stream.empty();
+        }
+        Collections.sort(entries);
+
+        // Subdirectories are only listed once the stream reaches them
+        return entries.stream().flatMap(entry -> {
+            if (Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+                return depth > 1 ? walk(entry, depth - 1) : Stream.empty();
+            }
+            return Files.isRegularFile(entry) ? Stream.of(entry) : Stream.empty();
+        });
+    }
+
+    private static boolean hasImageExtension(Path file) {
+        String name = file.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return dot >= 0 && IMAGE_EXTENSIONS.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * @param bytes content of a file
+     * @return whether the content starts like one of the supported image formats
+     */
+    static boolean isImage(byte[] bytes) {
+        for (byte[] magicNumber : MAGIC_NUMBERS) {
+            if (startsWith(bytes, bytes.length, magicNumber)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean startsWith(byte[] header, int length, byte[] prefix) {
+        if (length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (header[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     public static List<Float> getExposureTimes(List<String> images){
         List<Float> expTimes = new ArrayList<>();
         for (String img : images){
@@ -45,14 +147,7 @@ public class ImageReader {
 
     private static float getExposureTimes(File file){
         try {
-            Metadata metadata = JpegMetadataReader.readMetadata(file);
-
-            ExifSubIFDDirectory directory = metadata.getFirstDirectoryOfType(ExifSubIFDDirectory.class);
-
-            float expTimes = directory.getFloatObject(ExifSubIFDDirectory.TAG_EXPOSURE_TIME);
-            logger.info("Exposure time for: " + file + " is: " + expTimes);
-            return expTimes;
-
+            return getExposureTime(JpegMetadataReader.readMetadata(file), file.toString());
         } catch (ImageProcessingException e) {
             e.printStackTrace();
         } catch (IOException e) {
@@ -61,6 +156,80 @@ public class ImageReader {
         return -1;
     }
 
+    private static float getExposureTime(Metadata metadata, String name) {
+        ExifSubIFDDirectory directory = metadata.getFirstDirectoryOfType(ExifSubIFDDirectory.class);
+        if (directory == null || !directory.containsTag(ExifSubIFDDirectory.TAG_EXPOSURE_TIME)) {
+            logger.warn("No exposure time for: " + name);
+            return -1;
+        }
+
+        float expTimes = directory.getFloatObject(ExifSubIFDDirectory.TAG_EXPOSURE_TIME);
+        logger.info("Exposure time for: " + name + " is: " + expTimes);
+        return expTimes;
+    }
+
+    /**
+     * Reads the given images concurrently. Every file is read from disk once;
+     * both the pixels and the metadata are decoded from the same bytes.
+     *
+     * @param images paths of the images
+     * @param executor executor which decodes the images, e.g. a pool bounding how many are decoded at once
+     * @return the exposures, in the same order as the paths. Files which aren't images are skipped.
+     */
+    public static List<Exposure> readExposures(List<String> images, Executor executor) {
+        return readExposures(images.stream().map(Paths::get), executor);
+    }
 
+    /**
+     * Reads the given images concurrently. Every image is handed to the executor as soon as
+     * the stream produces it, so e.g. the images of a directory are decoded while its later
+     * subdirectories are still being listed.
+     *
+     * Every file is read once, and its leading bytes checked before decoding; files whose
+     * content isn't one of the supported formats are skipped.
+     *
+     * @param images the images, see {@link #streamImages}
+     * @param executor executor which decodes the images, e.g. a pool bounding how many are decoded at once
+     * @return the exposures, in the same order as the stream
+     */
+    public static List<Exposure> readExposures(Stream<Path> images, Executor executor) {
+        List<CompletableFuture<Exposure>> exposures = images
+                .map(image -> CompletableFuture.supplyAsync(() -> readExposure(image.toString()), executor))
+                .collect(Collectors.toList());
+
+        // Joined in order, so the exposure times stay aligned with the images
+        return exposures.stream()
+                .map(CompletableFuture::join)
+                .filter(Objects::nonNull)
+                .collect(Collectors.toList());
+    }
 
+    /**
+     * @return the exposure, or null if the file isn't an image
+     */
+    private static Exposure readExposure(String path) {
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(Paths.get(path));
+        } catch (IOException e) {
+            logger.warn("Failed to read image {}", path, e);
+            return new Exposure(path, new Mat(), -1, null);
+        }
+        if (!isImage(bytes)) {
+            logger.info("Skipping {}, not an image", path);
+            return null;
+        }
+
+        MatOfByte buffer = new MatOfByte(bytes);
+        Mat image = Imgcodecs.imdecode(buffer, Imgcodecs.IMREAD_COLOR);
+        buffer.release();
+
+        try {
+            Metadata metadata = JpegMetadataReader.readMetadata(new ByteArrayInputStream(bytes));
+            return new Exposure(path, image, getExposureTime(metadata, path), metadata);
+        } catch (ImageProcessingException | IOException e) {
+            logger.warn("Failed to read metadata of {}", path, e);
+            return new Exposure(path, image, -1, null);
+        }
+    }
 }
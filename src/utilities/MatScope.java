@@ -0,0 +1,247 @@
+package utilities;
+
+import metrics.Counter;
+import metrics.PipelineMetrics;
+import metrics.Stage;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Owns the intermediate Mats of a computation, and releases them all when closed,
+ * instead of leaving their native memory to the finalizers of the Java wrappers.
+ *
+ * <pre>
+ * try (MatScope scope = new MatScope(Stage.EDGE_DETECTION)) {
+ *     Mat gray = scope.newMat(source.size(), CV_8U);
+ *     ...
+ *     return scope.keep(result);
+ * }
+ * </pre>
+ *
+ * Mats requested with a size and type are taken from a per-thread pool, and returned to
+ * it when the scope is closed, so computations on same-sized images reuse their buffers.
+ * A thread pools at most {@value #MAX_POOLED_BYTES} bytes, and all threads together at most
+ * {@value #MAX_TOTAL_POOLED_BYTES} bytes; Mats beyond that are released instead. A worker
+ * thread should {@link #drainPool()} once it has finished a job, so the buffers of the job
+ * don't stay pinned while the worker idles or dies.
+ * No Mat of a scope, nor any submat of it, may be used after the scope is closed, unless
+ * it has been kept. Kept Mats are owned by the caller.
+ *
+ * With -DmatScope.debug=true, kept Mats are recorded in the bound {@link PipelineMetrics},
+ * which reports those never released as leaks of the scope's stage.
+ */
+public class MatScope implements AutoCloseable {
+
+    private static final boolean DEBUG = Boolean.getBoolean("matScope.debug");
+
+    /**
+     * Limits of the Mats kept for reuse by each thread.
+     */
+    private static final int MAX_POOLED_PER_SHAPE = 4;
+    private static final long MAX_POOLED_BYTES = 64L << 20;
+
+    /**
+     * Limit of the Mats kept for reuse by all threads together.
+     */
+    private static final long MAX_TOTAL_POOLED_BYTES = 256L << 20;
+
+    private static final AtomicLong totalPooledBytes = new AtomicLong();
+
+    private static final ThreadLocal<Pool> pool = ThreadLocal.withInitial(Pool::new);
+
+    private final Stage stage;
+    private final List<Mat> owned = new ArrayList<>();
+    private final List<Mat> pooled = new ArrayList<>();
+
+    /**
+     * @param stage stage of the pipeline which the Mats are used in, which leaks are reported for
+     */
+    public MatScope(Stage stage) {
+        this.stage = stage;
+    }
+
+    /**
+     * @return whether kept Mats are recorded to find leaks
+     */
+    public static boolean isDebug() {
+        return DEBUG;
+    }
+
+    /**
+     * Releases the Mats pooled by the current thread. Mats of scopes which are still open
+     * are returned to the pool as usual when closed.
+     */
+    public static void drainPool() {
+        pool.get().drain();
+    }
+
+    /**
+     * @return bytes pooled by all threads
+     */
+    static long getTotalPooledBytes() {
+        return totalPooledBytes.get();
+    }
+
+    /**
+     * @return a new empty Mat, released when the scope is closed
+     */
+    public Mat newMat() {
+        return track(new Mat());
+    }
+
+    /**
+     * Creates a Mat of the given size and type, reusing a pooled buffer if available.
+     * The content of the Mat is undefined.
+     *
+     * @param size size of the Mat
+     * @param type type of the Mat
+     * @return the Mat, returned to the pool when the scope is closed
+     */
+    public Mat newMat(Size size, int type) {
+        return newMat((int) size.height, (int) size.width, type);
+    }
+
+    /**
+     * Creates a Mat of the given size and type, reusing a pooled buffer if available.
+     * The content of the Mat is undefined.
+     *
+     * @param rows number of rows
+     * @param cols number of columns
+     * @param type type of the Mat
+     * @return the Mat, returned to the pool when the scope is closed
+     */
+    public Mat newMat(int rows, int cols, int type) {
+        Mat mat = pool.get().take(rows, cols, type);
+        if (mat == null) {
+            mat = new Mat(rows, cols, type);
+        } else {
+            PipelineMetrics.current().increment(Counter.MATS_REUSED);
+        }
+        pooled.add(mat);
+        return mat;
+    }
+
+    /**
+     * Makes the scope own a Mat created elsewhere, e.g. by clone().
+     *
+     * @param mat Mat to release when the scope is closed
+     * @return the given Mat
+     */
+    public <T extends Mat> T track(T mat) {
+        owned.add(mat);
+        return mat;
+    }
+
+    /**
+     * Makes the scope own all the given Mats, e.g. contours.
+     *
+     * @param mats Mats to release when the scope is closed
+     * @return the given Mats
+     */
+    public <T extends Mat> List<T> trackAll(List<T> mats) {
+        owned.addAll(mats);
+        return mats;
+    }
+
+    /**
+     * Hands a Mat of the scope over to the caller, who has to release it.
+     *
+     * @param mat Mat to keep when the scope is closed
+     * @return the given Mat
+     */
+    public <T extends Mat> T keep(T mat) {
+        owned.removeIf(candidate -> candidate == mat);
+        pooled.removeIf(candidate -> candidate == mat);
+        if (DEBUG) {
+            PipelineMetrics.current().trackKeptMat(stage, mat);
+        }
+        return mat;
+    }
+
+    /**
+     * Releases the owned Mats, and returns the pooled Mats to the pool.
+     */
+    @Override
+    public void close() {
+        for (Mat mat : owned) {
+            mat.release();
+        }
+        owned.clear();
+
+        Pool threadPool = pool.get();
+        for (Mat mat : pooled) {
+            threadPool.give(mat);
+        }
+        pooled.clear();
+    }
+
+    /**
+     * Mats which are free to be reused, by shape.
+     */
+    private static class Pool {
+        private final Map<String, ArrayDeque<Mat>> free = new HashMap<>();
+        private long bytes = 0;
+
+        private static String getShape(int rows, int cols, int type) {
+            return rows + "x" + cols + ":" + type;
+        }
+
+        private static long getBytes(Mat mat) {
+            return mat.total() * mat.elemSize();
+        }
+
+        private Mat take(int rows, int cols, int type) {
+            ArrayDeque<Mat> mats = free.get(getShape(rows, cols, type));
+            if (mats == null || mats.isEmpty()) {
+                return null;
+            }
+            Mat mat = mats.pop();
+            long size = getBytes(mat);
+            bytes -= size;
+            totalPooledBytes.addAndGet(-size);
+            return mat;
+        }
+
+        private void give(Mat mat) {
+            // The Mat may have been re-allocated with another shape by an OpenCV call,
+            // and a submat doesn't own its whole buffer.
+            long size = getBytes(mat);
+            if (mat.empty() || mat.isSubmatrix() || !mat.isContinuous() || bytes + size > MAX_POOLED_BYTES) {
+                mat.release();
+                return;
+            }
+
+            ArrayDeque<Mat> mats = free.computeIfAbsent(getShape(mat.rows(), mat.cols(), mat.type()),
+                    shape -> new ArrayDeque<>());
+            if (mats.size() >= MAX_POOLED_PER_SHAPE) {
+                mat.release();
+                return;
+            }
+            if (totalPooledBytes.addAndGet(size) > MAX_TOTAL_POOLED_BYTES) {
+                totalPooledBytes.addAndGet(-size);
+                mat.release();
+                return;
+            }
+            mats.push(mat);
+            bytes += size;
+        }
+
+        private void drain() {
+            for (ArrayDeque<Mat> mats : free.values()) {
+                for (Mat mat : mats) {
+                    mat.release();
+                }
+            }
+            free.clear();
+            totalPooledBytes.addAndGet(-bytes);
+            bytes = 0;
+        }
+    }
+}
@@ -1,9 +1,13 @@
 package utilities;
 
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.opencv.calib3d.Calib3d;
 import org.opencv.core.*;
 import org.opencv.features2d.DescriptorExtractor;
 import org.opencv.features2d.DescriptorMatcher;
 import org.opencv.features2d.FeatureDetector;
+import org.opencv.imgproc.Imgproc;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -13,13 +17,65 @@ import static org.opencv.imgproc.Imgproc.warpPerspective;
 
 public class ReceiptAligner {
 
+    private static final Logger logger = LogManager.getLogger(ReceiptAligner.class);
+
     private static final int MAX_AXIS_DELTA = 25;
 
+    /**
+     * Scale of the coarse level in {@link AlignmentMode#PYRAMID}, relative to the full size receipt.
+     */
+    private static final double COARSE_SCALE = 0.5;
+
+    /**
+     * Max distance (in full size pixels) between a reference point and the projection of
+     * a receipt point by the coarse homography, for the two to be matched when refining.
+     */
+    private static final double REFINEMENT_WINDOW = 8;
+
+    /**
+     * Half size (in full size pixels) of the windows around the coarse inliers which
+     * features are detected in when refining.
+     */
+    private static final int DETECTION_WINDOW = 16;
+
+    /**
+     * Max distance (in full size pixels) between a match and its projection for
+     * the match to count as an inlier.
+     */
+    private static final double RANSAC_REPROJECTION_THRESHOLD = 3;
+    private static final int RANSAC_MAX_ITERATIONS = 2000;
+
+    /**
+     * Max mean reprojection error (in full size pixels) of the coarse inliers for the
+     * coarse homography to be used without refining it.
+     */
+    private static final double MAX_COARSE_ERROR = RANSAC_REPROJECTION_THRESHOLD / 2;
+    private static final double RANSAC_CONFIDENCE = 0.995;
+
+    /**
+     * Number of inliers required to accept a homography.
+     */
+    private static final int MIN_INLIERS = 15;
+
+    /**
+     * A homography needs at least four point pairs.
+     */
+    private static final int MIN_HOMOGRAPHY_POINTS = 4;
+
     private final FeatureDetector featureDetector;
     private final DescriptorExtractor descriptorExtractor;
     private final DescriptorMatcher descriptorMatcher;
+    private final AlignmentMode mode;
 
     public ReceiptAligner() {
+        this(AlignmentMode.FULL);
+    }
+
+    /**
+     * @param mode how the transformation between receipts should be estimated
+     */
+    public ReceiptAligner(AlignmentMode mode) {
+        this.mode = mode;
         featureDetector = FeatureDetector.create(FeatureDetector.ORB);
         descriptorExtractor = DescriptorExtractor.create(DescriptorExtractor.ORB);
         descriptorMatcher = DescriptorMatcher.create(DescriptorMatcher.BRUTEFORCE_HAMMING);
@@ -29,38 +85,351 @@ public class ReceiptAligner {
      * Aligns a receipt after the specified reference.
      * This is done through feature detection/matching.
      *
-     * @param _reference reference receipt, image which we want to imitate
-     * @param _receipt receipt to be aligned
-     * @return aligned receipt
+     * @param reference reference receipt, image which we want to imitate
+     * @param receipt receipt to be aligned
+     * @return aligned receipt, or null if the receipt couldn't be aligned in {@link AlignmentMode#PYRAMID}
+     */
+    public Mat align(Mat reference, Mat receipt) {
+        Reference prepared = prepareReference(reference);
+        try {
+            return align(prepared, receipt);
+        } finally {
+            prepared.release();
+        }
+    }
+
+    /**
+     * Detects the features of a reference receipt, so that several receipts
+     * can be aligned after it without re-detecting them.
+     *
+     * In {@link AlignmentMode#PYRAMID}, only the features of the downscaled reference are
+     * detected. The full size features are detected on demand, around the matches of the
+     * receipts which need refining, hence the reference keeps a copy of the image.
+     *
+     * @param reference reference receipt, image which we want to imitate
+     * @return the prepared reference
+     */
+    public Reference prepareReference(Mat reference) {
+        if (mode == AlignmentMode.PYRAMID) {
+            Mat scaled = downscale(reference);
+            Features coarse = detectFeatures(scaled, null);
+            scaled.release();
+            return new Reference(null, coarse, reference.clone());
+        }
+
+        return new Reference(detectFeatures(reference, null), null, null);
+    }
+
+    /**
+     * Aligns a receipt after the specified prepared reference.
+     * This is done through feature detection/matching.
+     *
+     * @param reference prepared reference receipt, see {@link #prepareReference(Mat)}
+     * @param receipt receipt to be aligned
+     * @return aligned receipt, or null if the receipt couldn't be aligned in {@link AlignmentMode#PYRAMID}
      */
-    public Mat align(Mat _reference, Mat _receipt)
+    public Mat align(Reference reference, Mat receipt)
     {
-        Mat reference = _reference.clone(); // @todo Performance: Do we really need to clone?
-        Mat receipt = _receipt.clone();
+        Mat homography = estimateHomography(reference, receipt);
+        if (homography == null) {
+            return null;
+        }
+
+        // Warp the receipt. Neither this nor detecting features modifies
+        // the receipt, hence no need to clone it.
+        Mat aligned = new Mat();
+        warpPerspective(receipt, aligned, homography, receipt.size());
+        homography.release();
+        return aligned;
+    }
+
+    /**
+     * @param reference prepared reference receipt
+     * @param receipt receipt to be aligned
+     * @return homography from the receipt to the reference, or null if the receipt couldn't be aligned
+     */
+    Mat estimateHomography(Reference reference, Mat receipt) {
+        return mode == AlignmentMode.PYRAMID
+                ? findHomographyPyramid(reference, receipt)
+                : findHomographyFull(reference, receipt);
+    }
+
+    private Mat findHomographyFull(Reference reference, Mat receipt) {
+        Features features = detectFeatures(receipt, null);
+        PointPairs pairs = match(reference.full, features, null, MAX_AXIS_DELTA);
+        features.release();
+
+        Mat homography = findHomography(pairs.destination, pairs.source);
+        pairs.release();
+        return homography;
+    }
+
+    private Mat findHomographyPyramid(Reference reference, Mat receipt) {
+        // Estimate the homography on the coarse level first, which usually is good enough
+        Mat scaled = downscale(receipt);
+        Features coarseFeatures = detectFeatures(scaled, null);
+        scaled.release();
+
+        PointPairs coarsePairs = match(reference.coarse, coarseFeatures, null, MAX_AXIS_DELTA * COARSE_SCALE);
+        coarseFeatures.release();
+
+        Estimate coarse = findRobustHomography(coarsePairs, RANSAC_REPROJECTION_THRESHOLD * COARSE_SCALE);
+        if (coarse != null) {
+            Mat seed = scaleHomography(coarse.homography, COARSE_SCALE);
+            coarse.homography.release();
+
+            double error = coarse.meanError / COARSE_SCALE;
+            if (error <= MAX_COARSE_ERROR) {
+                return seed;
+            }
+
+            logger.debug("Coarse alignment is off by {} pixels on average, refining it", error);
+            Mat refined = refine(reference, receipt, coarse, seed);
+            if (refined == null) {
+                logger.info("Too few inliers to refine the coarse alignment, keeping it");
+                return seed;
+            }
+            seed.release();
+            return refined;
+        }
 
-        MatOfKeyPoint keypoints1 = new MatOfKeyPoint();
-        featureDetector.detect(reference, keypoints1);
+        logger.info("Too few inliers on coarse level, aligning full size receipt");
+        Features referenceFeatures = detectFeatures(reference.image, null);
+        Features features = detectFeatures(receipt, null);
+        PointPairs pairs = match(referenceFeatures, features, null, MAX_AXIS_DELTA);
+        referenceFeatures.release();
+        features.release();
 
-        MatOfKeyPoint keypoints2 = new MatOfKeyPoint();
-        featureDetector.detect(receipt, keypoints2);
+        Estimate estimate = findRobustHomography(pairs, RANSAC_REPROJECTION_THRESHOLD);
+        if (estimate == null) {
+            logger.warn("Too few inliers to align receipt, rejecting it");
+            return null;
+        }
+        return estimate.homography;
+    }
+
+    /**
+     * Refines a coarse homography on the full size receipts. Features are only detected in
+     * windows around the coarse inliers, and a receipt point may only be matched with the
+     * reference points close to where the coarse homography projects it.
+     *
+     * @param reference prepared reference receipt
+     * @param receipt receipt to be aligned
+     * @param coarse estimate on the coarse level
+     * @param seed the coarse homography, scaled to the full size receipts
+     * @return the refined homography, or null if too few matches were inliers
+     */
+    private Mat refine(Reference reference, Mat receipt, Estimate coarse, Mat seed) {
+        Mat referenceMask = createWindowMask(reference.image.size(), coarse.sourceInliers);
+        Features referenceFeatures = detectFeatures(reference.image, referenceMask);
+        referenceMask.release();
+
+        Mat receiptMask = createWindowMask(receipt.size(), coarse.destinationInliers);
+        Features features = detectFeatures(receipt, receiptMask);
+        receiptMask.release();
+
+        Mat window = createProjectionMask(referenceFeatures, features, seed, REFINEMENT_WINDOW);
+        PointPairs pairs = match(referenceFeatures, features, window, MAX_AXIS_DELTA);
+        window.release();
+        referenceFeatures.release();
+        features.release();
+
+        Estimate refined = findRobustHomography(pairs, RANSAC_REPROJECTION_THRESHOLD);
+        return refined == null ? null : refined.homography;
+    }
 
-        Mat descriptor1 = new Mat();
-        descriptorExtractor.compute(reference, keypoints1, descriptor1);
+    /**
+     * Estimates the homography with RANSAC. Releases the point pairs.
+     *
+     * @param pairs matched points
+     * @param reprojectionThreshold max reprojection error of an inlier
+     * @return the estimate, or null if too few matches were inliers
+     */
+    private Estimate findRobustHomography(PointPairs pairs, double reprojectionThreshold) {
+        if (pairs.size < Math.max(MIN_INLIERS, MIN_HOMOGRAPHY_POINTS)) {
+            pairs.release();
+            return null;
+        }
+
+        Mat inlierMask = new Mat();
+        Mat homography = findHomography(
+                pairs.destination, pairs.source, Calib3d.RANSAC, reprojectionThreshold,
+                inlierMask, RANSAC_MAX_ITERATIONS, RANSAC_CONFIDENCE
+        );
+        pairs.release();
 
-        Mat descriptor2 = new Mat();
-        descriptorExtractor.compute(receipt, keypoints2, descriptor2);
+        byte[] inliers = new byte[pairs.size];
+        if (!inlierMask.empty()) {
+            inlierMask.get(0, 0, inliers);
+        }
+        inlierMask.release();
+        if (homography.empty()) {
+            homography.release();
+            return null;
+        }
 
+        double[] h = new double[9];
+        homography.get(0, 0, h);
+        List<Point> sourceInliers = new ArrayList<>();
+        List<Point> destinationInliers = new ArrayList<>();
+        double error = 0;
+        for (int i = 0; i < inliers.length; i++) {
+            if (inliers[i] == 0) {
+                continue;
+            }
+            Point source = pairs.sourcePoints.get(i);
+            Point destination = pairs.destinationPoints.get(i);
+            Point projected = project(h, destination);
+            error += Math.hypot(projected.x - source.x, projected.y - source.y);
+            sourceInliers.add(source);
+            destinationInliers.add(destination);
+        }
+
+        if (sourceInliers.size() < MIN_INLIERS) {
+            homography.release();
+            return null;
+        }
+        return new Estimate(homography, sourceInliers, destinationInliers, error / sourceInliers.size());
+    }
+
+    /**
+     * Converts a homography between two downscaled images to one between
+     * the full size images, i.e. S^-1 * H * S where S scales a full size point.
+     *
+     * @param homography homography on the downscaled level
+     * @param scale scale of the downscaled level
+     * @return homography between the full size images
+     */
+    static Mat scaleHomography(Mat homography, double scale) {
+        double[] h = new double[9];
+        homography.get(0, 0, h);
+
+        h[2] /= scale;
+        h[5] /= scale;
+        h[6] *= scale;
+        h[7] *= scale;
+
+        Mat scaled = new Mat(3, 3, CvType.CV_64F);
+        scaled.put(0, 0, h);
+        return scaled;
+    }
+
+    private static Point project(double[] h, Point p) {
+        double w = h[6] * p.x + h[7] * p.y + h[8];
+        return new Point((h[0] * p.x + h[1] * p.y + h[2]) / w, (h[3] * p.x + h[4] * p.y + h[5]) / w);
+    }
+
+    private Mat downscale(Mat source) {
+        Mat scaled = new Mat();
+        Imgproc.resize(source, scaled, new Size(), COARSE_SCALE, COARSE_SCALE, Imgproc.INTER_AREA);
+        return scaled;
+    }
+
+    /**
+     * Creates a mask which only allows matching a reference point with the receipt points
+     * which the homography projects within the window around it.
+     *
+     * @param reference features of the reference
+     * @param receipt features of the receipt
+     * @param homography homography from the receipt to the reference
+     * @param window max distance between a reference point and a projected receipt point
+     * @return mask with a row per reference point and a column per receipt point
+     */
+    private Mat createProjectionMask(Features reference, Features receipt, Mat homography, double window) {
+        double[] h = new double[9];
+        homography.get(0, 0, h);
+
+        int rows = reference.keyPoints.length;
+        int cols = receipt.keyPoints.length;
+        Point[] projected = new Point[cols];
+        for (int i = 0; i < cols; i++) {
+            projected[i] = project(h, receipt.keyPoints[i].pt);
+        }
+
+        byte[] allowed = new byte[rows * cols];
+        double maxDistance = window * window;
+        for (int i = 0; i < rows; i++) {
+            Point p = reference.keyPoints[i].pt;
+            for (int j = 0; j < cols; j++) {
+                double dx = projected[j].x - p.x;
+                double dy = projected[j].y - p.y;
+                if (dx * dx + dy * dy <= maxDistance) {
+                    allowed[i * cols + j] = 1;
+                }
+            }
+        }
+
+        Mat mask = new Mat(rows, cols, CvType.CV_8UC1);
+        mask.put(0, 0, allowed);
+        return mask;
+    }
+
+    /**
+     * Creates a mask of the windows around the given points of a coarse level.
+     *
+     * @param size size of the full size image
+     * @param points points on the coarse level
+     * @return mask which is non-zero within {@link #DETECTION_WINDOW} of a point
+     */
+    private Mat createWindowMask(Size size, List<Point> points) {
+        Mat mask = Mat.zeros(size, CvType.CV_8UC1);
+        Scalar inside = new Scalar(255);
+        for (Point point : points) {
+            double x = point.x / COARSE_SCALE;
+            double y = point.y / COARSE_SCALE;
+            Imgproc.rectangle(mask, new Point(x - DETECTION_WINDOW, y - DETECTION_WINDOW),
+                    new Point(x + DETECTION_WINDOW, y + DETECTION_WINDOW), inside, Core.FILLED);
+        }
+        return mask;
+    }
+
+    /**
+     * @param source image to detect the features of
+     * @param mask where to detect features, or null to detect them in the whole image
+     */
+    private Features detectFeatures(Mat source, Mat mask) {
+        MatOfKeyPoint keypoints = new MatOfKeyPoint();
+        if (mask == null) {
+            featureDetector.detect(source, keypoints);
+        } else {
+            featureDetector.detect(source, keypoints, mask);
+        }
+
+        Mat descriptors = new Mat();
+        descriptorExtractor.compute(source, keypoints, descriptors);
+
+        Features features = new Features(keypoints.toArray(), descriptors);
+        keypoints.release();
+        return features;
+    }
+
+    /**
+     * Matches the features of a receipt with the features of the reference.
+     *
+     * @param reference features of the reference
+     * @param receipt features of the receipt
+     * @param mask which pairs of points may be matched, or null to allow every pair
+     * @param maxAxisDelta max x/y-difference between two matched points
+     * @return the matched points
+     */
+    private PointPairs match(Features reference, Features receipt, Mat mask, double maxAxisDelta) {
         List<MatOfDMatch> matches = new ArrayList<>();
-        descriptorMatcher.knnMatch(descriptor1, descriptor2, matches, 1);
+        if (mask == null) {
+            descriptorMatcher.knnMatch(reference.descriptors, receipt.descriptors, matches, 1);
+        } else if (!mask.empty()) {
+            // Compact, so that reference points without any allowed match are left out
+            descriptorMatcher.knnMatch(reference.descriptors, receipt.descriptors, matches, 1, mask, true);
+        }
 
-        KeyPoint[] _keyPoints1 = keypoints1.toArray();
-        KeyPoint[] _keyPoints2 = keypoints2.toArray();
+        KeyPoint[] _keyPoints1 = reference.keyPoints;
+        KeyPoint[] _keyPoints2 = receipt.keyPoints;
 
         List<Point> _source = new ArrayList<>();
         List<Point> _destination = new ArrayList<>();
 
         for (MatOfDMatch match : matches) {
             DMatch[] dMatches = match.toArray();
+            match.release();
             if (dMatches.length != 1) {
                 // Should not happen as k = 1
                 continue;
@@ -75,7 +444,7 @@ public class ReceiptAligner {
 
             // Only select the best matches, e.g. the one where the matched points
             // do not have too much x/y-difference.
-            if (Math.abs(p1.y - p2.y) > MAX_AXIS_DELTA || Math.abs(p1.x - p2.x) > MAX_AXIS_DELTA) {
+            if (Math.abs(p1.y - p2.y) > maxAxisDelta || Math.abs(p1.x - p2.x) > maxAxisDelta) {
                 continue;
             }
 
@@ -89,11 +458,102 @@ public class ReceiptAligner {
         MatOfPoint2f source = new MatOfPoint2f();
         source.fromList(_source);
 
-        Mat aligned = new Mat(reference.size(), CvType.CV_8UC1);
+        return new PointPairs(source, destination, _source, _destination);
+    }
 
-        // Find homography and warp the receipt
-        Mat homography = findHomography(destination, source);
-        warpPerspective(receipt, aligned, homography, receipt.size());
-        return aligned;
+    /**
+     * The features of a reference receipt. Once prepared, a reference is only
+     * read, and may be shared between threads.
+     */
+    public static class Reference {
+
+        private final Features full;
+        private final Features coarse;
+        private final Mat image;
+
+        private Reference(Features full, Features coarse, Mat image) {
+            this.full = full;
+            this.coarse = coarse;
+            this.image = image;
+        }
+
+        /**
+         * Releases the native memory held by the reference.
+         */
+        public void release() {
+            if (full != null) {
+                full.release();
+            }
+            if (coarse != null) {
+                coarse.release();
+            }
+            if (image != null) {
+                image.release();
+            }
+        }
+    }
+
+    private static class Features {
+
+        private final KeyPoint[] keyPoints;
+        private final Mat descriptors;
+
+        private Features(KeyPoint[] keyPoints, Mat descriptors) {
+            this.keyPoints = keyPoints;
+            this.descriptors = descriptors;
+        }
+
+        private void release() {
+            descriptors.release();
+        }
+    }
+
+    /**
+     * Matched points, where source is the point in the reference.
+     */
+    private static class PointPairs {
+
+        private final MatOfPoint2f source;
+        private final MatOfPoint2f destination;
+        private final List<Point> sourcePoints;
+        private final List<Point> destinationPoints;
+        private final int size;
+
+        private PointPairs(MatOfPoint2f source, MatOfPoint2f destination,
+                           List<Point> sourcePoints, List<Point> destinationPoints) {
+            this.source = source;
+            this.destination = destination;
+            this.sourcePoints = sourcePoints;
+            this.destinationPoints = destinationPoints;
+            this.size = sourcePoints.size();
+        }
+
+        private void release() {
+            source.release();
+            destination.release();
+        }
+    }
+
+    /**
+     * A robustly estimated homography, with the matches which agree with it.
+     */
+    private static class Estimate {
+
+        private final Mat homography;
+        private final List<Point> sourceInliers;
+        private final List<Point> destinationInliers;
+
+        /**
+         * Mean reprojection error of the inliers, in pixels of the matched level.
+         */
+        private final double meanError;
+
+        private Estimate(Mat homography, List<Point> sourceInliers, List<Point> destinationInliers,
+                         double meanError) {
+            this.homography = homography;
+            this.sourceInliers = sourceInliers;
+            this.destinationInliers = destinationInliers;
+            this.meanError = meanError;
+        }
     }
 }
@@ -1,5 +1,8 @@
 package utilities;
 
+import metrics.Counter;
+import metrics.PipelineMetrics;
+import metrics.Stage;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.opencv.core.Core;
@@ -11,11 +14,24 @@ import org.opencv.videoio.Videoio;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Consumer;
 
 public class VideoSplitter {
 
     private static double sizeLimit = 1000;
 
+    /**
+     * Videos with at most this many frames are always decoded sequentially.
+     */
+    private static final int SHORT_VIDEO_FRAMES = 150;
+
+    /**
+     * The largest distance between two sampled frames for which decoding
+     * sequentially is cheaper than seeking. Phone cameras typically encode
+     * with a keyframe every 30 frames.
+     */
+    private static final int MAX_SEQUENTIAL_STEP = 15;
+
     private static final Logger logger = LogManager.getLogger(VideoSplitter.class);
 
     /**
@@ -42,6 +58,38 @@ public class VideoSplitter {
      * @return extracted frames
      */
     public static List<Mat> getFrames(VideoCapture capture, int requiredFrames) {
+        return getFrames(capture, requiredFrames, FrameSamplingMode.AUTOMATIC);
+    }
+
+    /**
+     * Extracts a specified number of evenly distributed frames from the provided video capture.
+     * This method will not release the given capture.
+     *
+     * @param capture        capture containing video
+     * @param requiredFrames If 0, all frames. Otherwise, the frames will be evenly distributed across the video
+     * @param mode           how the frames should be sampled from the capture
+     * @return extracted frames
+     */
+    public static List<Mat> getFrames(VideoCapture capture, int requiredFrames, FrameSamplingMode mode) {
+        List<Mat> frames = new ArrayList<>();
+        forEachFrame(capture, requiredFrames, mode, frames::add);
+        return frames;
+    }
+
+    /**
+     * Extracts a specified number of evenly distributed frames from the provided video capture,
+     * handing each frame to the consumer as soon as it has been decoded. Only one frame is kept
+     * in memory by this method; the consumer owns the frames it's given.
+     * This method will not release the given capture.
+     *
+     * @param capture        capture containing video
+     * @param requiredFrames If 0, all frames. Otherwise, the frames will be evenly distributed across the video
+     * @param mode           how the frames should be sampled from the capture
+     * @param consumer       consumer of the extracted frames, called in frame order
+     * @return number of extracted frames
+     */
+    public static int forEachFrame(VideoCapture capture, int requiredFrames, FrameSamplingMode mode,
+                                   Consumer<Mat> consumer) {
         final double frameCount = capture.get(Videoio.CAP_PROP_FRAME_COUNT);
         logger.info("Provided capture has {} frames", frameCount);
 
@@ -51,22 +99,88 @@ public class VideoSplitter {
             logger.info("Frame delay is {}", frameDelay);
         }
 
-        List<Mat> frames = new ArrayList<>();
+        if (mode == FrameSamplingMode.AUTOMATIC) {
+            mode = selectSamplingMode(frameCount, frameDelay);
+        }
+        logger.info("Sampling frames using mode {}", mode);
+
+        int extracted = mode == FrameSamplingMode.SEQUENTIAL
+                ? getFramesSequentially(capture, frameCount, frameDelay, consumer)
+                : getFramesBySeeking(capture, frameCount, frameDelay, consumer);
+
+        capture.release();
+        return extracted;
+    }
+
+    /**
+     * Selects the cheapest way of sampling frames. Seeking forces the decoder to
+     * re-decode from the previous keyframe, so it only pays off if the samples are
+     * further apart than about half a keyframe interval.
+     *
+     * @param frameCount number of frames in the video
+     * @param frameDelay number of frames skipped between each sample
+     * @return the mode to sample frames with
+     */
+    static FrameSamplingMode selectSamplingMode(double frameCount, int frameDelay) {
+        if (frameCount <= SHORT_VIDEO_FRAMES || frameDelay + 1 <= MAX_SEQUENTIAL_STEP) {
+            return FrameSamplingMode.SEQUENTIAL;
+        }
+        return FrameSamplingMode.SEEK;
+    }
+
+    private static int getFramesBySeeking(VideoCapture capture, double frameCount, int frameDelay,
+                                          Consumer<Mat> consumer) {
+        final PipelineMetrics metrics = PipelineMetrics.current();
+        int extracted = 0;
         // To get an uniform distribution of frames, skip a set number of frames
         // between each retrieve. We don't read the frames in between for
         // performance reasons.
         for (int index = 0; index < frameCount; index += frameDelay + 1) {
-            logger.info("Extracting frame {}", index);
+            logger.debug("Extracting frame {}", index);
+            long start = System.nanoTime();
             capture.set(Videoio.CAP_PROP_POS_FRAMES, index);
             Mat frame = new Mat();
             capture.read(frame);
 
             resizeImage(frame);
-            frames.add(frame);
+            recordDecodedFrame(metrics, frame, start);
+            consumer.accept(frame);
+            extracted++;
         }
+        return extracted;
+    }
 
-        capture.release();
-        return frames;
+    private static int getFramesSequentially(VideoCapture capture, double frameCount, int frameDelay,
+                                             Consumer<Mat> consumer) {
+        final PipelineMetrics metrics = PipelineMetrics.current();
+        int extracted = 0;
+        // Decode every frame in order, but only convert the frames we keep.
+        // grab() fails at the end of the stream, which may come before the
+        // reported frame count. The skipped frames are timed as part of the next
+        // kept frame, as decoding them is the price of not seeking.
+        long start = System.nanoTime();
+        for (int index = 0; index < frameCount && capture.grab(); index++) {
+            if (index % (frameDelay + 1) != 0) {
+                continue;
+            }
+
+            logger.debug("Extracting frame {}", index);
+            Mat frame = new Mat();
+            capture.retrieve(frame);
+
+            resizeImage(frame);
+            recordDecodedFrame(metrics, frame, start);
+            consumer.accept(frame);
+            start = System.nanoTime();
+            extracted++;
+        }
+        return extracted;
+    }
+
+    private static void recordDecodedFrame(PipelineMetrics metrics, Mat frame, long start) {
+        metrics.record(Stage.DECODE, System.nanoTime() - start);
+        metrics.increment(Counter.FRAMES_DECODED);
+        metrics.trackAllocation(frame);
     }
 
     private static void resizeImage(Mat mat){